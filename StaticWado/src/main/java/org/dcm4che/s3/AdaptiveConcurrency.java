@@ -0,0 +1,62 @@
+package org.dcm4che.s3;
+
+/**
+ * Limits the number of requests in flight, adapting the limit in the same way as TCP congestion control.  Each round
+ * of successful requests raises the limit by one, up to the maximum, while a throttling response such as a 503 SlowDown
+ * halves it.  The limit is only halved once per backoff interval, as every request in flight when the store starts
+ * throttling is likely to be throttled too.
+ */
+public class AdaptiveConcurrency {
+    static final long BACKOFF_INTERVAL = 1000L * 1000L * 1000L;
+
+    private final int max;
+    private int limit;
+    private int inFlight;
+    private int successes;
+    private long lastDecrease = System.nanoTime() - BACKOFF_INTERVAL;
+
+    public AdaptiveConcurrency(int initial, int max) {
+        this.max = max;
+        this.limit = Math.max(1, Math.min(initial, max));
+    }
+
+    /** Waits until another request can be started */
+    public synchronized void acquire() throws InterruptedException {
+        while( inFlight>=limit ) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /** Ends a successful request */
+    public synchronized void success() {
+        inFlight--;
+        if( ++successes>=limit ) {
+            successes = 0;
+            if( limit<max ) limit++;
+        }
+        notifyAll();
+    }
+
+    /** Ends a throttled request, reducing the limit */
+    public synchronized void throttled() {
+        inFlight--;
+        successes = 0;
+        long now = System.nanoTime();
+        if( now-lastDecrease>=BACKOFF_INTERVAL ) {
+            lastDecrease = now;
+            limit = Math.max(1, limit/2);
+        }
+        notifyAll();
+    }
+
+    /** Ends a request which failed for some reason other than throttling, leaving the limit unchanged */
+    public synchronized void failed() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+}
@@ -0,0 +1,32 @@
+package org.dcm4che.s3;
+
+/**
+ * Chooses the Cache-Control header for each uploaded object, so CDNs and browsers can cache the content which never
+ * changes without revalidating it.  Bulkdata is named by its content hash, and the frames of an instance are fixed by
+ * its SOP Instance UID, so both are immutable.  The studies list, query results and metadata change as instances are
+ * added, so they are only cached briefly.  Other objects, such as the viewer, are left to the default caching.
+ */
+public class CachePolicy {
+    public static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    public static final int DEFAULT_INDEX_MAX_AGE = 60;
+    public static final CachePolicy DEFAULT = new CachePolicy(DEFAULT_INDEX_MAX_AGE);
+
+    private final String mutable;
+
+    /** @param indexMaxAge is the number of seconds the mutable DICOMweb responses may be cached for */
+    public CachePolicy(int indexMaxAge) {
+        this.mutable = "public, max-age=" + indexMaxAge;
+    }
+
+    /** Returns the Cache-Control value for the object key, or null for the default */
+    public String getCacheControl(String key) {
+        if( isImmutable(key) ) return IMMUTABLE;
+        if( key.startsWith("dicomweb/") ) return mutable;
+        return null;
+    }
+
+    /** Returns true for keys whose content never changes */
+    public static boolean isImmutable(String key) {
+        return key.startsWith("dicomweb/") && (key.contains("/bulkdata/") || key.contains("/frames/"));
+    }
+}
@@ -0,0 +1,117 @@
+package org.dcm4che.s3;
+
+import org.dcm4che.staticwado.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Uploads each study as soon as it has been written, while the following studies are still being generated.
+ * Studies wait for upload in a bounded queue, so generation is held up when the upload falls behind, rather than
+ * filling the disk.  Used as the study listener of a StudyManager.
+ */
+public class PipelinedUpload implements Consumer<String>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PipelinedUpload.class);
+
+    public static final int DEFAULT_QUEUE_SIZE = 4;
+
+    // Marks the end of the queued studies
+    private static final String END = "";
+
+    private final UploadS3 upload;
+    private final String exportDir;
+    private final boolean deleteUploaded;
+    private final BlockingQueue<String> queue;
+    private final Thread thread;
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    private boolean closed;
+
+    /**
+     * @param deleteUploaded is true to delete the local copy of each study once it has been uploaded
+     */
+    public PipelinedUpload(UploadS3 upload, String exportDir, int queueSize, boolean deleteUploaded) {
+        this.upload = upload;
+        this.exportDir = exportDir;
+        this.deleteUploaded = deleteUploaded;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.thread = new NamedThreadFactory("PipelinedUpload").newThread(this::run);
+        thread.start();
+    }
+
+    /**
+     * Queues a written study for upload, waiting for space in the queue.  If the upload thread has stopped,
+     * the study is recorded as failed rather than waiting forever.
+     */
+    @Override
+    public void accept(String studyUid) {
+        try {
+            while( thread.isAlive() ) {
+                if( queue.offer(studyUid, 1, TimeUnit.SECONDS) ) return;
+            }
+            log.warn("Pipelined upload stopped, not uploading study {}", studyUid);
+            failed.add(studyUid);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted queueing study {} for upload", studyUid);
+            failed.add(studyUid);
+        }
+    }
+
+    private void run() {
+        try {
+            String studyUid;
+            while( !END.equals(studyUid = queue.take()) ) {
+                try {
+                    upload.uploadStudy(exportDir, studyUid, deleteUploaded);
+                    log.warn("Uploaded study {}", studyUid);
+                } catch(Exception e) {
+                    log.warn("Unable to upload study {}", studyUid, e);
+                    failed.add(studyUid);
+                } catch(Error e) {
+                    // Errors such as running out of memory end the thread, which accept and close notice
+                    failed.add(studyUid);
+                    throw e;
+                }
+            }
+        } catch(InterruptedException e) {
+            log.warn("Pipelined upload interrupted");
+        }
+    }
+
+    /** Returns the studies which failed to upload, which are kept locally to be uploaded again */
+    public List<String> getFailed() {
+        synchronized(failed) {
+            return new ArrayList<>(failed);
+        }
+    }
+
+    /** Waits for the queued studies to be uploaded */
+    @Override
+    public void close() throws IOException {
+        if( closed ) return;
+        closed = true;
+        try {
+            while( !queue.offer(END, 1, TimeUnit.SECONDS) ) {
+                if( !thread.isAlive() ) break;
+            }
+            thread.join();
+            // Studies still queued when the thread ended on an error weren't uploaded
+            for(String studyUid : queue) {
+                if( !END.equals(studyUid) ) failed.add(studyUid);
+            }
+            queue.clear();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the pipelined upload", e);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package org.dcm4che.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.dcm4che.staticwado.ContentEncoding;
+import org.dcm4che.staticwado.StorageBackend;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the DICOMweb tree straight to an S3 bucket, without staging the files locally first.  Output is buffered
+ * a part at a time and sent as a multipart upload, so memory use is bounded no matter how large the object is, while
+ * objects smaller than a part are sent with a single put.  An object only becomes visible once its stream is closed,
+ * and a failed upload is aborted so no partial parts are left behind.
+ * <p>
+ * As each S3 object has a single Content-Encoding, only one encoding of compressed outputs is written.
+ */
+public class S3Storage implements StorageBackend {
+    private static final Logger log = LoggerFactory.getLogger(S3Storage.class);
+
+    /** The part size, which must be at least the S3 minimum of 5MB */
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String prefix;
+    private final ContentEncoding encoding;
+    private int partSize = DEFAULT_PART_SIZE;
+    private CachePolicy cachePolicy = CachePolicy.DEFAULT;
+
+    /**
+     * @param prefix is the key prefix of the tree in the bucket, eg dicomweb/
+     * @param encoding is the encoding compressed outputs are written in
+     */
+    public S3Storage(AmazonS3 s3, String bucketName, String prefix, ContentEncoding encoding) {
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.encoding = encoding;
+    }
+
+    public void setPartSize(int partSize) {
+        if( partSize<MIN_PART_SIZE ) throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE);
+        this.partSize = partSize;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        this.cachePolicy = cachePolicy;
+    }
+
+    String key(String path) {
+        return prefix + path;
+    }
+
+    @Override
+    public Set<ContentEncoding> getEncodings(Set<ContentEncoding> requested) {
+        return Collections.singleton(encoding);
+    }
+
+    @Override
+    public OutputStream openForWrite(String path, ContentEncoding encoding) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(UploadS3.getContentType(new File(path)));
+        if( encoding!=null ) metadata.setContentEncoding(encoding.getName());
+        String cacheControl = cachePolicy.getCacheControl(key(path));
+        if( cacheControl!=null ) metadata.setCacheControl(cacheControl);
+        return new S3OutputStream(key(path), metadata);
+    }
+
+    @Override
+    public InputStream openForRead(String path, ContentEncoding encoding) throws IOException {
+        try {
+            return s3.getObject(bucketName, key(path)).getObjectContent();
+        } catch(AmazonS3Exception e) {
+            if( e.getStatusCode()==404 ) return null;
+            throw new IOException("Unable to read " + key(path), e);
+        } catch(SdkClientException e) {
+            throw new IOException("Unable to read " + key(path), e);
+        }
+    }
+
+    @Override
+    public boolean exists(String path, ContentEncoding encoding) throws IOException {
+        try {
+            return s3.doesObjectExist(bucketName, key(path));
+        } catch(SdkClientException e) {
+            throw new IOException("Unable to check " + key(path), e);
+        }
+    }
+
+    @Override
+    public void delete(String path, ContentEncoding encoding) throws IOException {
+        try {
+            s3.deleteObject(bucketName, key(path));
+        } catch(SdkClientException e) {
+            throw new IOException("Unable to delete " + key(path), e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "s3://" + bucketName + "/" + prefix;
+    }
+
+    /** Buffers a part at a time, starting a multipart upload once the first part is full */
+    class S3OutputStream extends OutputStream {
+        private final String key;
+        private final ObjectMetadata metadata;
+        private final List<PartETag> parts = new ArrayList<>();
+        private byte[] buffer = new byte[64 * 1024];
+        private int length;
+        private String uploadId;
+        private boolean closed;
+
+        S3OutputStream(String key, ObjectMetadata metadata) {
+            this.key = key;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if( closed ) throw new IOException("Stream closed");
+            while( len>0 ) {
+                if( length==buffer.length ) {
+                    if( length<partSize ) {
+                        // Grow the buffer up to the part size, so that small objects don't allocate a whole part
+                        byte[] grown = new byte[Math.min(partSize, 2 * buffer.length)];
+                        System.arraycopy(buffer, 0, grown, 0, length);
+                        buffer = grown;
+                    } else {
+                        uploadPart();
+                    }
+                }
+                int copy = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, copy);
+                length += copy;
+                off += copy;
+                len -= copy;
+            }
+        }
+
+        private void uploadPart() throws IOException {
+            try {
+                if( uploadId==null ) {
+                    uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key, metadata)).getUploadId();
+                    log.debug("Started multipart upload of {}", key);
+                }
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(parts.size() + 1)
+                        .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                        .withPartSize(length);
+                parts.add(s3.uploadPart(request).getPartETag());
+                length = 0;
+            } catch(SdkClientException e) {
+                abort();
+                throw new IOException("Unable to upload part " + (parts.size() + 1) + " of " + key, e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if( closed ) return;
+            closed = true;
+            if( uploadId==null ) {
+                metadata.setContentLength(length);
+                byte[] md5 = md5(buffer, length);
+                metadata.addUserMetadata(UploadS3.CONTENT_HASH, UploadManifest.hex(md5));
+                metadata.setContentMD5(Base64.getEncoder().encodeToString(md5));
+                try {
+                    s3.putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(buffer, 0, length), metadata));
+                } catch(SdkClientException e) {
+                    throw new IOException("Unable to upload " + key, e);
+                } finally {
+                    buffer = null;
+                }
+                return;
+            }
+            if( length>0 ) uploadPart();
+            buffer = null;
+            try {
+                s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, parts));
+            } catch(SdkClientException e) {
+                abort();
+                throw new IOException("Unable to complete the upload of " + key, e);
+            }
+        }
+
+        private byte[] md5(byte[] data, int length) {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                md5.update(data, 0, length);
+                return md5.digest();
+            } catch(NoSuchAlgorithmException e) {
+                throw new Error(e);
+            }
+        }
+
+        private void abort() {
+            closed = true;
+            if( uploadId==null ) return;
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+            } catch(SdkClientException e) {
+                log.warn("Unable to abort the upload of {}", key, e);
+            }
+        }
+    }
+}
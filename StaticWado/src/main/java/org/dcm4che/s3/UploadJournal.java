@@ -0,0 +1,112 @@
+package org.dcm4che.s3;
+
+import org.dcm4che.staticwado.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append only journal of the objects uploaded, so that an interrupted upload resumes where it stopped without
+ * uploading or checking the completed objects again.  Entries are only added once the upload has completed, and are
+ * written in batches, synced to disk at least once a second, so only the last second can be lost on a hard stop.
+ * A background flush syncs the last batch when uploads pause, such as while waiting on a slow object.
+ * The journal is removed once a complete upload has written the manifest.
+ */
+class UploadJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(UploadJournal.class);
+
+    static final int BATCH_SIZE = 256;
+    static final long SYNC_INTERVAL = 1000L * 1000L * 1000L;
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("JournalFlush"));
+
+    private final File file;
+    private final FileChannel channel;
+    private final StringBuilder batch = new StringBuilder();
+    private int batchCount;
+    private long lastSync = System.nanoTime();
+    private final ScheduledFuture<?> timedFlush;
+
+    UploadJournal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.timedFlush = FLUSHER.scheduleWithFixedDelay(this::timedFlush, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.NANOSECONDS);
+    }
+
+    /** Syncs a batch which has waited for a full interval */
+    private synchronized void timedFlush() {
+        if( System.nanoTime()-lastSync<SYNC_INTERVAL ) return;
+        try {
+            flush();
+        } catch(IOException e) {
+            log.warn("Unable to flush the upload journal {}", file, e);
+        }
+    }
+
+    /** Adds the entries of an existing journal to manifest, returning the number of entries */
+    static int replay(File file, UploadManifest manifest) throws IOException {
+        if( !file.exists() ) return 0;
+        int count = 0;
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while( (line=reader.readLine())!=null ) {
+                // A line cut short by a hard stop doesn't have all the fields, and is skipped
+                String[] fields = line.split("\t");
+                if( fields.length!=4 ) continue;
+                try {
+                    manifest.put(fields[0], new UploadManifest.Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                    count++;
+                } catch(NumberFormatException e) {
+                    log.debug("Skipping journal line {}", line);
+                }
+            }
+        }
+        return count;
+    }
+
+    synchronized void append(String key, UploadManifest.Entry entry) throws IOException {
+        batch.append(key).append('\t').append(entry.size).append('\t').append(entry.lastModified)
+                .append('\t').append(entry.etag).append('\n');
+        if( ++batchCount>=BATCH_SIZE || System.nanoTime()-lastSync>=SYNC_INTERVAL ) {
+            flush();
+        }
+    }
+
+    /** Writes and syncs the batch */
+    synchronized void flush() throws IOException {
+        if( batchCount==0 || !channel.isOpen() ) return;
+        ByteBuffer data = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        while( data.hasRemaining() ) {
+            channel.write(data);
+        }
+        channel.force(false);
+        batch.setLength(0);
+        batchCount = 0;
+        lastSync = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        timedFlush.cancel(false);
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Closes and removes the journal, once its entries are in the manifest */
+    synchronized void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+}
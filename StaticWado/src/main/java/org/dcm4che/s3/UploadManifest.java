@@ -0,0 +1,179 @@
+package org.dcm4che.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The objects known to be in the bucket, as key, size and ETag, so that a sync can decide what to upload without
+ * a request per object.  It is either listed from the bucket, a thousand keys per request, or read from the local
+ * manifest written at the end of the previous upload.  The local manifest also records the modified time of the
+ * file each object was uploaded from, so unchanged files don't need to be hashed again.
+ */
+public class UploadManifest {
+    private static final Logger log = LoggerFactory.getLogger(UploadManifest.class);
+
+    /** The most parts in a multipart upload, which sets the part size of very large files */
+    static final int MAX_PARTS = 10000;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** One object, with a lastModified of -1 when it wasn't uploaded from a local file */
+    public static class Entry {
+        final long size;
+        final long lastModified;
+        final String etag;
+
+        public Entry(long size, long lastModified, String etag) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etag = etag;
+        }
+
+        /** Returns true if this entry was made from the given file, as it is now */
+        boolean isFrom(File file) {
+            return lastModified!=-1 && size==file.length() && lastModified==file.lastModified();
+        }
+    }
+
+    /** Lists all the objects under prefix in the bucket */
+    public static UploadManifest list(AmazonS3 s3, String bucketName, String prefix) {
+        UploadManifest ret = new UploadManifest();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+        int calls = 0;
+        ListObjectsV2Result result;
+        do {
+            result = s3.listObjectsV2(request);
+            calls++;
+            for(S3ObjectSummary summary : result.getObjectSummaries()) {
+                ret.entries.put(summary.getKey(), new Entry(summary.getSize(), -1, unquote(summary.getETag())));
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        } while( result.isTruncated() );
+        log.warn("Listed {} objects under {} in {} calls", ret.size(), prefix, calls);
+        return ret;
+    }
+
+    /** Reads a local manifest, returning null if there isn't one */
+    public static UploadManifest read(File file) throws IOException {
+        if( !file.exists() ) return null;
+        UploadManifest ret = new UploadManifest();
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while( (line=reader.readLine())!=null ) {
+                String[] fields = line.split("\t");
+                if( fields.length!=4 ) continue;
+                ret.entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+            }
+        }
+        return ret;
+    }
+
+    /** Writes the manifest to file, replacing it atomically */
+    public void write(File file) throws IOException {
+        List<String> lines = new ArrayList<>(entries.size());
+        entries.forEach((key, entry) -> lines.add(key + "\t" + entry.size + "\t" + entry.lastModified + "\t" + entry.etag));
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns true if the object for key is the same as file, first by size, and then by ETag.  The ETag of the file
+     * is only computed if the sizes match and the entry wasn't recorded from the file as it is now.
+     */
+    public boolean isCurrent(String key, File file, long partSize) throws IOException {
+        Entry entry = entries.get(key);
+        if( entry==null || entry.size!=file.length() ) return false;
+        if( entry.isFrom(file) ) return true;
+        return entry.etag.equalsIgnoreCase(etag(file, partSize));
+    }
+
+    /**
+     * Returns the ETag S3 gives file when uploaded with the given multipart part size.  That is the MD5 for a single
+     * put, or the MD5 of the part MD5s followed by the number of parts for a multipart upload.
+     */
+    public static String etag(File file, long partSize) throws IOException {
+        long length = file.length();
+        if( length<UploadS3.MULTIPART_THRESHOLD ) {
+            return hex(md5(file));
+        }
+        partSize = Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+        MessageDigest parts = createMd5();
+        int count = 0;
+        for(long offset=0; offset<length; offset+=partSize, count++) {
+            MessageDigest md5 = createMd5();
+            digest(file, offset, Math.min(partSize, length-offset), md5);
+            parts.update(md5.digest());
+        }
+        return hex(parts.digest()) + "-" + count;
+    }
+
+    /** Returns the MD5 of the whole file */
+    public static byte[] md5(File file) throws IOException {
+        MessageDigest md5 = createMd5();
+        digest(file, 0, file.length(), md5);
+        return md5.digest();
+    }
+
+    private static void digest(File file, long offset, long length, MessageDigest md5) throws IOException {
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            byte[] buffer = new byte[64 * 1024];
+            while( length>0 ) {
+                int len = raf.read(buffer, 0, (int) Math.min(buffer.length, length));
+                if( len==-1 ) throw new EOFException("File " + file + " changed while hashing");
+                md5.update(buffer, 0, len);
+                length -= len;
+            }
+        }
+    }
+
+    private static MessageDigest createMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch(NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        String ret = new BigInteger(1, digest).toString(16);
+        while( ret.length()<32 ) ret = "0" + ret;
+        return ret;
+    }
+
+    static String unquote(String etag) {
+        if( etag!=null && etag.length()>1 && etag.startsWith("\"") && etag.endsWith("\"") ) {
+            return etag.substring(1, etag.length()-1);
+        }
+        return etag;
+    }
+}
@@ -1,58 +1,133 @@
 package org.dcm4che.s3;
 import org.apache.commons.cli.CommandLine;
+import org.dcm4che.staticwado.BulkdataStore;
+import org.dcm4che.staticwado.ContentEncoding;
 import org.dcm4che.staticwado.FileHandler;
 import org.dcm4che.staticwado.JsonWadoAccess;
+import org.dcm4che.staticwado.QueryIndex;
+import org.dcm4che.staticwado.StudiesIndex;
 import org.dcm4che3.data.*;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.SdkClientException;
+import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.amazonaws.retry.RetryUtils;
+import org.dcm4che.staticwado.NamedThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.IOException;
-
 /** Handles uploading an existing set of study directories into the S3 directory.  Also updates the studies
  * instance and replaces it.
  */
-public class UploadS3 {
+public class UploadS3 implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(UploadS3.class);
 
+    /** The default number of upload threads, which is the most uploads in flight at once */
+    public static final int DEFAULT_THREADS = 16;
+    /** Files at least this large are uploaded in parallel parts by the transfer manager */
+    public static final long MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+    /** The multipart part size, which the ETags of large files depend on */
+    public static final long PART_SIZE = S3Storage.DEFAULT_PART_SIZE;
+    static final int MAX_THROTTLE_RETRIES = 8;
+    static final long MAX_BACKOFF_MILLIS = 10_000;
+
+    /** The user metadata holding the hex MD5 of the whole content, which the ETag isn't for multipart uploads */
+    public static final String CONTENT_HASH = "content-md5";
+
     public static final Set<String> JSON_NAMES = new HashSet<>(Arrays.asList(
             "studies", "series", "metadata", "instances", "deduplicated"
     ));
 
     private final String bucketName;
     private final String regionName;
+    /** An S3 compatible endpoint URL to use in place of AWS, or null */
+    private final String endpoint;
     private boolean dryRun;
     /** The location of the OHIF Client to import into S3 */
     private final String clientImport;
+    /** The encoding uploaded when a file has been written in several encodings */
+    private final ContentEncoding uploadEncoding;
 
     Map<String,Attributes> studies = new HashMap<>();
     private FileHandler handler;
     private File studiesFile;
 
+    private final int threads;
+    private AmazonS3 s3Client;
+    private TransferManager transferManager;
+    private final ExecutorService pool;
+    private final AdaptiveConcurrency concurrency;
+    private final Semaphore queued;
+    /** The uploads still in progress, each removed once it completes so that only failures are kept */
+    private final Set<CompletableFuture<Void>> pending = ConcurrentHashMap.newKeySet();
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+    private final UploadStats stats = new UploadStats();
+
+    /** Lists the bucket to decide what to upload, rather than trusting the local manifest */
+    private boolean sync;
+    private CachePolicy cachePolicy = CachePolicy.DEFAULT;
+    private UploadManifest manifest = new UploadManifest();
+    private File manifestFile;
+    private UploadJournal journal;
+    private Thread flushOnExit;
+    /** True to check each object with a HEAD request, as there is no listing or manifest */
+    private boolean headCheck = true;
+    /** True to read, update and upload the full studies list, rather than just the sharded studies index */
+    private boolean studiesList = true;
+
     public UploadS3(CommandLine cl) {
         this.bucketName = cl.getOptionValue("bucket", "static-wado");
         this.regionName = cl.getOptionValue( "region", Regions.US_EAST_2.getName());
+        this.endpoint = cl.getOptionValue("endpoint");
         this.dryRun = cl.hasOption("dry");
         this.clientImport = cl.getOptionValue("client");
+        this.uploadEncoding = ContentEncoding.forName(cl.getOptionValue("uploadEncoding", ContentEncoding.GZIP.getName()));
+        this.threads = Integer.parseInt(cl.getOptionValue("uploadThreads", String.valueOf(DEFAULT_THREADS)));
+        this.sync = cl.hasOption("sync");
+        this.studiesList = !cl.hasOption("noStudiesList");
+        if( cl.hasOption("indexMaxAge") ) {
+            this.cachePolicy = new CachePolicy(Integer.parseInt(cl.getOptionValue("indexMaxAge")));
+        }
+        this.pool = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Upload"));
+        this.concurrency = new AdaptiveConcurrency(Math.max(1, threads/4), threads);
+        this.queued = new Semaphore(4 * threads);
         log.warn("Client import {}", this.clientImport);
     }
 
+    /** Creates an uploader using the given client, as used for testing against an in-process store */
+    UploadS3(AmazonS3 s3Client, String bucketName, int threads) {
+        this.bucketName = bucketName;
+        this.regionName = Regions.US_EAST_2.getName();
+        this.endpoint = null;
+        this.clientImport = null;
+        this.uploadEncoding = ContentEncoding.GZIP;
+        this.threads = threads;
+        this.s3Client = s3Client;
+        this.pool = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Upload"));
+        this.concurrency = new AdaptiveConcurrency(Math.max(1, threads/4), threads);
+        this.queued = new Semaphore(4 * threads);
+    }
+
     /** Goes through all the source directories provided and uploads them to the destination.
      * Assumes that "studies" is the root studies directory, finding that in the parent or child.
      * If it isn't found, then throws an error.
+     * @throws IOException if any object couldn't be uploaded, once the journal of the uploaded objects has been
+     *     written so that running again resumes the upload
      */
-    public void upload(String exportDir, String... studyUids) {
+    public void upload(String exportDir, String... studyUids) throws IOException {
         String[] sources;
         if( studyUids==null || studyUids.length==0 ) {
             sources = new String[]{exportDir};
@@ -60,6 +135,8 @@ public class UploadS3 {
             sources = Arrays.stream(studyUids).map(uid -> (exportDir + "/studies/"+uid)).toArray(String[]::new);
         }
         try {
+            loadManifest(exportDir);
+            uploadBulkdataStore(exportDir);
             for(String src : sources) {
                 File fileSrc = new File(src).getAbsoluteFile();
                 String path = fileSrc.getParentFile().getPath();
@@ -73,25 +150,52 @@ public class UploadS3 {
                         childFile = childFile.getParentFile();
                     }
                     log.debug("Found child file {}", childFile);
-                    studiesFile = new File(childFile.getParentFile(), "studies.gz");
-                    log.warn("Studies file {}", studiesFile);
-                    JsonWadoAccess.readStudiesDirectory(studies, studiesFile);
+                    if( studiesList ) {
+                        studiesFile = new File(childFile.getParentFile(), "studies.gz");
+                        log.warn("Studies file {}", studiesFile);
+                        JsonWadoAccess.readStudiesDirectory(studies, studiesFile);
+                    }
                 } else {
                     path = null;
                 }
-                upload(path, new File(src));
+                // Studies already uploaded by a pipelined upload may have been deleted
+                if( fileSrc.exists() ) upload(path, fileSrc);
             }
+            // The study contents must all be in place before the studies lists refer to them
+            awaitUploads();
+            uploadStudiesIndex(exportDir);
+            uploadQueryIndex(exportDir);
             if( studiesFile!=null ) {
                 log.warn("Creating new studies file {} and uploading it", studiesFile);
                 boolean wasDry = dryRun;
                 dryRun = false;
-                new JsonWadoAccess(new FileHandler(studiesFile.getParentFile())).writeJson("studies",studies.values().toArray(Attributes[]::new));
+                new JsonWadoAccess(new FileHandler(studiesFile.getParentFile())).writeJson("studies",studies.values());
                 uploadS3("dicomweb/", studiesFile, true);
                 dryRun = wasDry;
             }
+            saveManifest();
         } catch(IOException e) {
-            log.warn("Unable to upload because {}", e);
-            e.printStackTrace();
+            log.warn("Unable to upload, run again to resume", e);
+            for(Throwable failure : e.getSuppressed()) {
+                log.warn("Failed {}", failure.getMessage());
+            }
+            if( journal!=null ) journal.flush();
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads one study as soon as it has been written, for a pipelined upload.  The studies list is uploaded by
+     * upload once all the studies are done.
+     * @param delete is true to delete the local study directory once all of it has been uploaded
+     */
+    public void uploadStudy(String exportDir, String studyUid, boolean delete) throws IOException {
+        loadManifest(exportDir);
+        File studyDir = new File(exportDir, "studies/" + studyUid);
+        upload("dicomweb/studies/", studyDir);
+        awaitUploads();
+        if( delete && !dryRun ) {
+            FileHandler.deleteRecursively(studyDir);
         }
     }
 
@@ -102,22 +206,79 @@ public class UploadS3 {
                  path = path + file.getName() + "/";
              } else if( file.getName().equals("studies") ) {
                  path = "dicomweb/studies/";
-                 studiesFile = new File(file.getParentFile(),"studies.gz");
-                 JsonWadoAccess.readStudiesDirectory(studies,studiesFile);
+                 if( studiesList ) {
+                     studiesFile = new File(file.getParentFile(),"studies.gz");
+                     JsonWadoAccess.readStudiesDirectory(studies,studiesFile);
+                 }
              }
              for(File subFile : file.listFiles() ) {
                  upload(path,subFile);
              }
          } else if( path!=null ) {
-             if( file.getName().equalsIgnoreCase("studies.gz") ) {
+             if( studiesList && file.getName().equalsIgnoreCase("studies.gz") ) {
                  // This call will add the study to the studies list, replacing the old one
                  // This does NOT set the studies directory again.
                  JsonWadoAccess.readStudiesDirectory(studies,file);
              }
-             uploadS3(path,file,false);
+             // The encoded variants of a file all have the same S3 name, so only one of them is uploaded
+             if( isUploadVariant(file) ) submit(path,file,false);
          }
     }
 
+    /** Uploads the shards of the studies index changed by the import, followed by the index manifest which lists them */
+    public void uploadStudiesIndex(String exportDir) throws IOException {
+        uploadIndex("dicomweb/", new File(exportDir, StudiesIndex.INDEX_DIR), StudiesIndex.MANIFEST);
+    }
+
+    /** Uploads the pages of the QIDO search indexes, if they were written, followed by their manifests */
+    public void uploadQueryIndex(String exportDir) throws IOException {
+        uploadIndex("dicomweb/", new File(exportDir, QueryIndex.QIDO_DIR), QueryIndex.MANIFEST);
+    }
+
+    /**
+     * Uploads an index directory in two passes, first the files it refers to and then the manifest files named
+     * manifestName, so that clients never see a manifest referring to files which aren't uploaded yet.
+     */
+    void uploadIndex(String path, File indexDir, String manifestName) throws IOException {
+        if( !indexDir.isDirectory() ) return;
+        // The manifests, with the path of each
+        Map<File,String> manifests = new LinkedHashMap<>();
+        uploadIndexFiles(path, indexDir, manifestName, manifests);
+        awaitUploads();
+        for(Map.Entry<File,String> manifestFile : manifests.entrySet()) {
+            submit(manifestFile.getValue(), manifestFile.getKey(), false);
+        }
+        awaitUploads();
+    }
+
+    private void uploadIndexFiles(String path, File file, String manifestName, Map<File,String> manifests) throws IOException {
+        if( file.isDirectory() ) {
+            for(File subFile : file.listFiles()) {
+                uploadIndexFiles(path + file.getName() + "/", subFile, manifestName, manifests);
+            }
+        } else if( isUploadVariant(file) ) {
+            if( file.getName().startsWith(manifestName + ".") ) {
+                manifests.put(file, path);
+            } else {
+                submit(path, file, false);
+            }
+        }
+    }
+
+    /** Uploads the bulkdata store shared between studies, if there is one.  Items already in S3 are skipped, as
+     * they are named by their content hash.  The local reference index is not uploaded.
+     */
+    public void uploadBulkdataStore(String exportDir) throws IOException {
+        File storeDir = new File(exportDir, BulkdataStore.BULKDATA_DIR);
+        File[] subFiles = storeDir.listFiles();
+        if( subFiles==null ) return;
+        log.warn("Uploading shared bulkdata from {}", storeDir);
+        for(File subFile : subFiles) {
+            if( BulkdataStore.isIndex(subFile) ) continue;
+            uploadAll("dicomweb/" + BulkdataStore.BULKDATA_DIR + "/", subFile);
+        }
+    }
+
     /** Uploads a client directory if set */
     public void uploadClient() throws IOException {
         if( clientImport==null ) return;
@@ -136,7 +297,7 @@ public class UploadS3 {
             }
         }
         uploadAll(null,clientDir);
-
+        awaitUploads();
     }
 
     /** Just does an upload of everything in the file location, to the sub-string of the given path */
@@ -150,14 +311,74 @@ public class UploadS3 {
             for(File subFile : file.listFiles() ) {
                 uploadAll(path,subFile);
             }
-        } else {
-            uploadS3(path,file,false);
+        } else if( isUploadVariant(file) ) {
+            submit(path,file,false);
         }
     }
 
+    /**
+     * Returns true if src should be uploaded, out of the encoded variants of the same file, which all have the same
+     * S3 name.  That is the upload encoding if present, otherwise gzip, otherwise whichever variant there is.
+     */
+    boolean isUploadVariant(File src) {
+        ContentEncoding encoding = ContentEncoding.forFile(src);
+        if( encoding==null || encoding==uploadEncoding ) return true;
+        String base = src.getName().substring(0, src.getName().length()-encoding.getSuffix().length());
+        if( new File(src.getParentFile(), base+uploadEncoding.getSuffix()).exists() ) return false;
+        return encoding==ContentEncoding.GZIP || !new File(src.getParentFile(), base+ContentEncoding.GZIP.getSuffix()).exists();
+    }
+
+    /**
+     * Queues src to be uploaded on the upload threads.  Only a bounded number of uploads are queued, so this waits
+     * for the uploads to catch up when walking a large tree.
+     */
+    public void submit(String destPath, File src, boolean replace) throws IOException {
+        try {
+            queued.acquire();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted queueing " + src);
+        }
+        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+            try {
+                uploadS3(destPath, src, replace);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, pool);
+        pending.add(future);
+        future.whenComplete((v, e) -> {
+            if( e!=null ) failures.add(e instanceof CompletionException && e.getCause()!=null ? e.getCause() : e);
+            pending.remove(future);
+            queued.release();
+        });
+    }
+
+    /** Waits for all the queued uploads, throwing if any of them failed */
+    public void awaitUploads() throws IOException {
+        while( !pending.isEmpty() ) {
+            for(CompletableFuture<?> future : pending.toArray(new CompletableFuture<?>[0])) {
+                future.exceptionally(e -> null).join();
+            }
+        }
+        log.warn("{}, concurrency {}", stats, concurrency.getLimit());
+        List<Throwable> failed = new ArrayList<>();
+        Throwable failure;
+        while( (failure=failures.poll())!=null ) {
+            // Errors such as running out of memory end the run
+            if( failure instanceof Error ) throw (Error) failure;
+            failed.add(failure);
+        }
+        if( failed.isEmpty() ) return;
+        IOException error = new IOException("Unable to upload " + failed.size() + " files");
+        failed.forEach(error::addSuppressed);
+        throw error;
+    }
+
     /** Uploads from the given src file, to the destination path, of the given content type.
      * The name of the uploaded file will be the name of the src file, except that it will have
-     * an .gz or .br removed and the appropriate content encoding will be added (gzip or brotli).
+     * an .gz, .br or .zst removed and the appropriate content encoding will be added (gzip, br or zstd).
+     * Throttled uploads are retried with backoff, at a reduced concurrency.
      *
      * @param src
      * @param destPath
@@ -169,56 +390,284 @@ public class UploadS3 {
             log.warn("Would upload {} / {} to {}",destPath,src, s3Name);
             return;
         }
-        Regions clientRegion = Regions.fromName(regionName);
+        for(int attempt=0; ; attempt++) {
+            try {
+                concurrency.acquire();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted uploading " + src);
+            }
+            try {
+                putObject(s3Name, destPath, src, replace);
+                concurrency.success();
+                return;
+            } catch(AmazonServiceException e) {
+                if( !isThrottle(e) || attempt>=MAX_THROTTLE_RETRIES ) {
+                    concurrency.failed();
+                    throw new IOException("Unable to upload " + src + " to " + s3Name, e);
+                }
+                concurrency.throttled();
+                stats.throttled();
+                backoff(attempt, src);
+            } catch (SdkClientException e) {
+                concurrency.failed();
+                throw new IOException("Unable to upload " + src + " to " + s3Name, e);
+            } catch(IOException | RuntimeException e) {
+                concurrency.failed();
+                throw e;
+            }
+        }
+    }
+
+    private void putObject(String s3Name, String destPath, File src, boolean replace) throws IOException {
+        AmazonS3 s3Client = getClient();
+        ContentHash hash = new ContentHash(src);
+        if( !replace && isCurrent(s3Client, s3Name, src, hash) ) return;
+        log.debug("Uploading {} / {}",destPath,src);
+        // Upload a file as a new object with ContentType and title specified.
+        PutObjectRequest request = new PutObjectRequest(bucketName, s3Name, src);
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(getContentType(src));
+        ContentEncoding encoding = ContentEncoding.forFile(src);
+        if( encoding!=null ) {
+            metadata.setContentEncoding(encoding.getName());
+        }
+        String cacheControl = cachePolicy.getCacheControl(s3Name);
+        if( cacheControl!=null ) metadata.setCacheControl(cacheControl);
+        long length = src.length();
+        byte[] md5 = hash.get();
+        metadata.addUserMetadata(CONTENT_HASH, UploadManifest.hex(md5));
+        if( length<MULTIPART_THRESHOLD ) {
+            // S3 checks the content against this, which saves the client computing it again
+            metadata.setContentMD5(Base64.getEncoder().encodeToString(md5));
+        }
+        request.setMetadata(metadata);
+        long lastModified = src.lastModified();
+        String etag;
+        if( length>=MULTIPART_THRESHOLD ) {
+            try {
+                etag = getTransferManager().upload(request).waitForUploadResult().getETag();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted uploading " + src);
+            }
+        } else {
+            etag = s3Client.putObject(request).getETag();
+        }
+        if( etag!=null ) record(s3Name, new UploadManifest.Entry(length, lastModified, UploadManifest.unquote(etag)));
+        stats.uploaded(length, concurrency);
+    }
+
+    /**
+     * Returns true if s3Name is already the same as src.  That is decided from the manifest when there is one, and
+     * otherwise from a HEAD request, where only a 404 means that the object is missing.
+     */
+    private boolean isCurrent(AmazonS3 s3Client, String s3Name, File src, ContentHash hash) throws IOException {
+        UploadManifest.Entry entry = manifest.get(s3Name);
+        if( entry!=null && entry.isFrom(src) ) {
+            // Uploaded from this file before, including by an interrupted run
+            log.debug("Skipping unchanged {}", s3Name);
+            stats.skipped();
+            return true;
+        }
+        if( !headCheck ) {
+            if( manifest.isCurrent(s3Name, src, PART_SIZE) ) {
+                log.debug("Skipping unchanged {}", s3Name);
+                stats.skipped();
+                return true;
+            }
+            return false;
+        }
+        ObjectMetadata metadata;
         try {
-            //This code expects that you have AWS credentials set up per:
-            // https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/setup-credentials.html
-            AmazonS3 s3Client = AmazonS3ClientBuilder.standard()
-                    .withRegion(clientRegion)
-                    .build();
+            metadata = s3Client.getObjectMetadata(bucketName, s3Name);
+        } catch(AmazonS3Exception e) {
+            if( e.getStatusCode()==404 ) return false;
+            throw e;
+        }
+        String remoteHash = metadata.getUserMetaDataOf(CONTENT_HASH);
+        if( remoteHash!=null ) {
+            // Uploaded with a content hash, so compare that rather than the dates
+            if( !remoteHash.equalsIgnoreCase(UploadManifest.hex(hash.get())) ) return false;
+            log.debug("Skipping {} as it has the same content hash", s3Name);
+            if( metadata.getETag()!=null ) {
+                record(s3Name, new UploadManifest.Entry(metadata.getContentLength(), src.lastModified(), metadata.getETag()));
+            }
+            stats.skipped();
+            return true;
+        }
+        Date s3Date = metadata.getLastModified();
+        Date srcDate = new Date(src.lastModified());
+        if ( s3Date!=null && srcDate.before(s3Date) ) {
+            log.debug("Skipping {} because it already exists with date {} > {}", s3Name, s3Date, srcDate);
+            if( metadata.getETag()!=null ) {
+                record(s3Name, new UploadManifest.Entry(metadata.getContentLength(), src.lastModified(), metadata.getETag()));
+            }
+            stats.skipped();
+            return true;
+        }
+        log.warn("Object exists but date is newer {} <= {}", s3Date, srcDate);
+        return false;
+    }
 
-            if( !replace ) {
-                try {
-                    ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, s3Name);
-                    Date s3Date = metadata.getLastModified();
-                    Date srcDate = new Date(src.lastModified());
-                    if ( srcDate.before(s3Date) ) {
-                        log.warn("Skipping {} because it already exists with date {} > {}", s3Name, s3Date, srcDate);
-                        return;
-                    }
-                    log.warn("Object exists but date is newer {} <= {}  compare {}", s3Date, srcDate, srcDate.before(s3Date));
-                } catch(Exception e) {
-                    // Means it doesn't exist, no-op
-                }
+    /** The MD5 of a file being uploaded, read at most once however often it is needed */
+    private static class ContentHash {
+        private final File file;
+        private byte[] md5;
+
+        ContentHash(File file) {
+            this.file = file;
+        }
+
+        byte[] get() throws IOException {
+            if( md5==null ) md5 = UploadManifest.md5(file);
+            return md5;
+        }
+    }
+
+    /**
+     * Loads what is already in the bucket, from a listing in sync mode, otherwise from the local manifest of the
+     * previous upload.  Without either, each object is checked with a HEAD request.  The journal of an interrupted
+     * upload is added in either case, so the objects it completed are skipped without any requests.
+     */
+    synchronized void loadManifest(String exportDir) throws IOException {
+        if( manifestFile!=null ) return;
+        manifestFile = new File(exportDir, "upload-" + bucketName + ".manifest");
+        File journalFile = new File(exportDir, "upload-" + bucketName + ".journal");
+        UploadManifest known = sync ? UploadManifest.list(getClient(), bucketName, "dicomweb/") : UploadManifest.read(manifestFile);
+        headCheck = known==null;
+        manifest = known!=null ? known : new UploadManifest();
+        int resumed = UploadJournal.replay(journalFile, manifest);
+        if( resumed>0 ) log.warn("Resuming upload, {} objects already uploaded", resumed);
+        if( dryRun ) return;
+        journal = new UploadJournal(journalFile);
+        // Keep the last batch when the run is interrupted
+        UploadJournal exitJournal = journal;
+        flushOnExit = new Thread(() -> {
+            try {
+                exitJournal.flush();
+            } catch(IOException e) {
+                log.warn("Unable to flush the upload journal", e);
             }
-            log.warn("Uploading {} / {}",destPath,src);
-            // Upload a file as a new object with ContentType and title specified.
-            PutObjectRequest request = new PutObjectRequest(bucketName, s3Name, src);
-            ObjectMetadata metadata = new ObjectMetadata();
-            metadata.setContentType(getContentType(src));
-            if( isGzip(src) ) {
-                metadata.setContentEncoding("gzip");
-            } else if( isBrotli(src) ) {
-                metadata.setContentEncoding("brotli");
+        });
+        Runtime.getRuntime().addShutdownHook(flushOnExit);
+    }
+
+    /** Records an object as uploaded, or found to be current */
+    private void record(String s3Name, UploadManifest.Entry entry) throws IOException {
+        manifest.put(s3Name, entry);
+        if( journal!=null ) journal.append(s3Name, entry);
+    }
+
+    /** Writes the local manifest, which records the objects uploaded or found to be current, replacing the journal */
+    void saveManifest() throws IOException {
+        if( dryRun || manifestFile==null ) return;
+        manifest.write(manifestFile);
+        log.warn("Wrote {} entries to {}", manifest.size(), manifestFile);
+        if( journal!=null ) {
+            journal.delete();
+            journal = null;
+        }
+    }
+
+    private void closeJournal() throws IOException {
+        if( flushOnExit!=null ) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(flushOnExit);
+            } catch(IllegalStateException e) {
+                // Already shutting down, the hook will flush the journal
             }
-            request.setMetadata(metadata);
-            s3Client.putObject(request);
-        } catch (SdkClientException e) {
-            log.error("Couldn't upload", e);
-            e.printStackTrace();
-            throw new Error(e);
+            flushOnExit = null;
         }
+        if( journal!=null ) journal.close();
     }
 
-    public static boolean isGzip(File f) {
-        return f.getName().endsWith(".gz");
+    /** Returns true for the responses asking the client to slow down */
+    static boolean isThrottle(AmazonServiceException e) {
+        return e.getStatusCode()==503 || e.getStatusCode()==429 || "SlowDown".equals(e.getErrorCode())
+                || RetryUtils.isThrottlingException(e);
+    }
+
+    /** Sleeps for an exponentially increasing, jittered time before retrying a throttled upload */
+    private static void backoff(int attempt, File src) throws InterruptedIOException {
+        long max = Math.min(MAX_BACKOFF_MILLIS, 100L << Math.min(attempt, 16));
+        try {
+            Thread.sleep(max/2 + ThreadLocalRandom.current().nextLong(max/2 + 1));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted uploading " + src);
+        }
     }
 
+    void setSync(boolean sync) {
+        this.sync = sync;
+    }
 
-    public static boolean isBrotli(File f) {
-        return f.getName().endsWith(".br");
+    UploadStats getStats() {
+        return stats;
     }
 
+    /** Returns the client shared by all the uploads, creating it on first use */
+    synchronized AmazonS3 getClient() {
+        if( s3Client==null ) s3Client = createClient();
+        return s3Client;
+    }
+
+    private synchronized TransferManager getTransferManager() {
+        if( transferManager==null ) {
+            transferManager = TransferManagerBuilder.standard()
+                    .withS3Client(getClient())
+                    .withMultipartUploadThreshold(MULTIPART_THRESHOLD)
+                    .withMinimumUploadPartSize(PART_SIZE)
+                    .withShutDownThreadPools(true)
+                    .build();
+        }
+        return transferManager;
+    }
+
+    /** Waits for the queued uploads, then releases the upload threads and the client */
+    @Override
+    public void close() throws IOException {
+        try {
+            awaitUploads();
+        } finally {
+            closeJournal();
+            pool.shutdown();
+            synchronized(this) {
+                if( transferManager!=null ) transferManager.shutdownNow(false);
+                if( s3Client!=null ) s3Client.shutdown();
+            }
+        }
+    }
+
+    /** Creates a client for the region, or for the endpoint if one is set */
+    public AmazonS3 createClient() {
+        //This code expects that you have AWS credentials set up per:
+        // https://docs.aws.amazon.com/sdk-for-java/v1/developer-guide/setup-credentials.html
+        // Allow a connection for each upload thread, as well as the transfer manager parts
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withClientConfiguration(new ClientConfiguration().withMaxConnections(2 * threads + ClientConfiguration.DEFAULT_MAX_CONNECTIONS));
+        if( endpoint!=null ) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, regionName))
+                    .withPathStyleAccessEnabled(true);
+        } else {
+            builder.withRegion(Regions.fromName(regionName));
+        }
+        return builder.build();
+    }
+
+    /** Creates storage writing the DICOMweb tree directly into the bucket, in the upload encoding */
+    public S3Storage createStorage() {
+        S3Storage storage = new S3Storage(getClient(), bucketName, "dicomweb/", uploadEncoding);
+        storage.setCachePolicy(cachePolicy);
+        return storage;
+    }
+
+    public static boolean isGzip(File f) {
+        return f.getName().endsWith(".gz");
+    }
+
+
     public static String getContentType(File src) {
         String name = s3Name(src);
         if( name.endsWith(".js") ) return "text/javascript";
@@ -235,8 +684,9 @@ public class UploadS3 {
 
     public static String s3Name(File src) {
         String ret = src.getName();
-        if( isGzip(src) || isBrotli(src) ) {
-            ret = ret.substring(0,ret.length()-3);
+        ContentEncoding encoding = ContentEncoding.forFile(src);
+        if( encoding!=null ) {
+            ret = ret.substring(0,ret.length()-encoding.getSuffix().length());
         }
         return ret;
     }
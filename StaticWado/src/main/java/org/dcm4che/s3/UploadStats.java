@@ -0,0 +1,63 @@
+package org.dcm4che.s3;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Counts the objects and bytes uploaded, periodically logging the throughput */
+class UploadStats {
+    private static final Logger log = LoggerFactory.getLogger(UploadStats.class);
+
+    // 5 second relog
+    private static final long RELOG_TIME = 1000L*1000L*1000L*5;
+
+    private final long start = System.nanoTime();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong lastLog = new AtomicLong(start);
+
+    void uploaded(long length, AdaptiveConcurrency concurrency) {
+        files.incrementAndGet();
+        bytes.addAndGet(length);
+        long last = lastLog.get();
+        long now = System.nanoTime();
+        if( now-last>RELOG_TIME && lastLog.compareAndSet(last, now) ) {
+            log.warn("{}, concurrency {}", this, concurrency.getLimit());
+        }
+    }
+
+    void skipped() {
+        skipped.incrementAndGet();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    void throttled() {
+        throttles.incrementAndGet();
+    }
+
+    long getFiles() {
+        return files.get();
+    }
+
+    long getThrottles() {
+        return throttles.get();
+    }
+
+    /** Returns the upload rate in MB/s since the start */
+    double getRate() {
+        double seconds = Math.max(1, System.nanoTime()-start) / 1e9;
+        return bytes.get() / (1024.0 * 1024.0) / seconds;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Uploaded %d files, %.1f MB at %.2f MB/s, %d unchanged, %d throttled", files.get(),
+                bytes.get() / (1024.0 * 1024.0), getRate(), skipped.get(), throttles.get());
+    }
+}
@@ -1,12 +1,21 @@
 package org.dcm4che.staticwado;
 import org.apache.commons.cli.*;
+import org.dcm4che.s3.CachePolicy;
+import org.dcm4che.s3.PipelinedUpload;
 import org.dcm4che.s3.UploadS3;
 import org.dcm4che3.data.UID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
 
 public class StaticWado {
+    private static final Logger log = LoggerFactory.getLogger(StaticWado.class);
+
     public static final Map<String,String> TS_BY_TYPE = new HashMap<>();
     static {
         TS_BY_TYPE.put("jpll", UID.JPEGLosslessSV1);
@@ -58,6 +67,91 @@ public class StaticWado {
                 .hasArg()
                 .desc("Sets the transfer syntax directly")
                 .build());
+        opts.addOption(Option.builder("threads")
+                .hasArg()
+                .desc("Number of threads used to scan the input files and to generate studies")
+                .build());
+        opts.addOption(Option.builder("maxOpenStudies")
+                .hasArg()
+                .desc("Maximum number of studies being generated at once, defaults to the number of threads")
+                .build());
+        opts.addOption(Option.builder("group")
+                .desc("Group the input files by study with a header only pre-pass, for interleaved inputs")
+                .build());
+        opts.addOption(Option.builder("bulkInPlace")
+                .desc("Reference native bulkdata in the source files rather than copying it to the temp directory")
+                .build());
+        opts.addOption(Option.builder("sharedBulkdata")
+                .desc("Store non-image bulkdata once in a content addressed bulkdata directory shared by all studies")
+                .build());
+        opts.addOption(Option.builder("metadataMemory")
+                .hasArg()
+                .argName("instances")
+                .desc("Number of instances per study to keep the full metadata for in memory, writing the rest to the temp directory.  "
+                        + "This is per open study, so the heap holds the full metadata of up to instances times maxOpenStudies instances")
+                .build());
+        opts.addOption(Option.builder("encodings")
+                .hasArg()
+                .desc("Comma separated encodings to write compressed outputs in, from gzip,br,zstd.  Gzip is always written")
+                .build());
+        opts.addOption(Option.builder("uploadEncoding")
+                .hasArg()
+                .desc("Encoding to upload to S3 when outputs were written in several, one of gzip,br,zstd, defaults to gzip")
+                .build());
+        opts.addOption(Option.builder("direct")
+                .desc("Write the DICOMweb output directly to the S3 bucket, instead of to the output directory")
+                .build());
+        opts.addOption(Option.builder("endpoint")
+                .hasArg()
+                .argName("url")
+                .desc("Endpoint URL of an S3 compatible store to use in place of AWS")
+                .build());
+        opts.addOption(Option.builder("pipeline")
+                .desc("With -s3, upload each study as soon as it is written, while the rest are generated")
+                .build());
+        opts.addOption(Option.builder("uploadQueue")
+                .hasArg()
+                .desc("Number of written studies waiting for a pipelined upload before generation waits, defaults to " + PipelinedUpload.DEFAULT_QUEUE_SIZE)
+                .build());
+        opts.addOption(Option.builder("deleteUploaded")
+                .desc("Delete the local copy of each study once the pipelined upload has uploaded it")
+                .build());
+        opts.addOption(Option.builder("indexMaxAge")
+                .hasArg()
+                .argName("seconds")
+                .desc("Cache-Control max-age of the uploaded studies lists, query results and metadata, defaults to " + CachePolicy.DEFAULT_INDEX_MAX_AGE)
+                .build());
+        opts.addOption(Option.builder("noStudiesList")
+                .desc("Only update the sharded studies-index, not the full studies list, so each run only rewrites the index shards of its own studies")
+                .build());
+        opts.addOption(Option.builder("qido")
+                .desc("Write precomputed QIDO search indexes by PatientID, PatientName, StudyDate, AccessionNumber and ModalitiesInStudy under qido")
+                .build());
+        opts.addOption(Option.builder("sync")
+                .desc("List the S3 bucket to find the objects to upload, instead of using the manifest of the last upload")
+                .build());
+        opts.addOption(Option.builder("uploadThreads")
+                .hasArg()
+                .desc("Maximum number of concurrent S3 uploads, reduced automatically when S3 throttles, defaults to " + UploadS3.DEFAULT_THREADS)
+                .build());
+        opts.addOption(Option.builder("gzipThreads")
+                .hasArg()
+                .desc("Number of threads used to gzip large outputs in parallel, defaults to the number of processors")
+                .build());
+        opts.addOption(Option.builder("gzipLevel")
+                .hasArg()
+                .desc("Gzip compression level, 1 (fastest) to 9 (smallest)")
+                .build());
+        opts.addOption(Option.builder("gzipBlockSize")
+                .hasArg()
+                .argName("bytes")
+                .desc("Size of the blocks compressed in parallel, at least 32768")
+                .build());
+        opts.addOption(Option.builder("tempDir")
+                .hasArg()
+                .argName("directory")
+                .desc("Base directory for temporary files, eg a tmpfs mount, defaults to <output>/studies/temp")
+                .build());
         opts.addOption(Option.builder("h").desc("Show help").build());
 
         CommandLineParser parser = new DefaultParser();
@@ -79,20 +173,62 @@ public class StaticWado {
         String[] otherArgs = cl.getArgs();
         String[] studies = cl.getOptionValues("study");
         String exportDir = cl.getOptionValue('d', "/dicomweb");
-        if( otherArgs!=null && otherArgs.length>0 ) {
-            manager.setExportDir(exportDir);
-            String tsuid = cl.getOptionValue("tsuid");
-            String contentType = cl.getOptionValue("contentType","lei");
-            if( contentType!=null && tsuid==null ) {
-                tsuid = TS_BY_TYPE.get(contentType);
-            }
-            manager.setTransferSyntaxUid(tsuid);
-            studies = manager.importStudies(otherArgs);
+        if( cl.hasOption("gzipThreads") || cl.hasOption("gzipLevel") || cl.hasOption("gzipBlockSize") ) {
+            ParallelGZIPOutputStream.configure(
+                    Integer.parseInt(cl.getOptionValue("gzipBlockSize", String.valueOf(ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE))),
+                    Integer.parseInt(cl.getOptionValue("gzipLevel", String.valueOf(Deflater.DEFAULT_COMPRESSION))),
+                    Integer.parseInt(cl.getOptionValue("gzipThreads", String.valueOf(Runtime.getRuntime().availableProcessors()))),
+                    ParallelGZIPOutputStream.DEFAULT_THRESHOLD);
+        }
+        if( cl.hasOption("encodings") ) {
+            FileHandler.setDefaultEncodings(Arrays.stream(cl.getOptionValue("encodings").split(","))
+                    .map(String::trim).map(ContentEncoding::forName).collect(Collectors.toList()));
         }
-        if( cl.hasOption("s3") ) {
-            UploadS3 uploadS3 = new UploadS3(cl);
-            uploadS3.uploadClient();
-            uploadS3.upload(exportDir,studies);
+        try(UploadS3 uploadS3 = cl.hasOption("s3") || cl.hasOption("direct") ? new UploadS3(cl) : null) {
+            if( otherArgs!=null && otherArgs.length>0 ) {
+                manager.setExportDir(exportDir);
+                if( cl.hasOption("direct") ) {
+                    manager.setStorage(uploadS3.createStorage());
+                }
+                String tsuid = cl.getOptionValue("tsuid");
+                String contentType = cl.getOptionValue("contentType","lei");
+                if( contentType!=null && tsuid==null ) {
+                    tsuid = TS_BY_TYPE.get(contentType);
+                }
+                manager.setTransferSyntaxUid(tsuid);
+                manager.setThreads(Integer.parseInt(cl.getOptionValue("threads", "1")));
+                manager.setMaxOpenStudies(Integer.parseInt(cl.getOptionValue("maxOpenStudies", "0")));
+                manager.setGroupStudies(cl.hasOption("group"));
+                manager.setBulkdataInPlace(cl.hasOption("bulkInPlace"));
+                manager.setTempDir(cl.getOptionValue("tempDir"));
+                manager.setSharedBulkdata(cl.hasOption("sharedBulkdata"));
+                manager.setMetadataMemoryInstances(Integer.parseInt(cl.getOptionValue("metadataMemory", "0")));
+                manager.setStudiesList(!cl.hasOption("noStudiesList"));
+                manager.setQueryIndex(cl.hasOption("qido"));
+                PipelinedUpload pipeline = null;
+                if( cl.hasOption("pipeline") && cl.hasOption("s3") && !cl.hasOption("direct") ) {
+                    pipeline = new PipelinedUpload(uploadS3, exportDir,
+                            Integer.parseInt(cl.getOptionValue("uploadQueue", String.valueOf(PipelinedUpload.DEFAULT_QUEUE_SIZE))),
+                            cl.hasOption("deleteUploaded"));
+                    manager.setStudyListener(pipeline);
+                }
+                try {
+                    studies = manager.importStudies(otherArgs);
+                } finally {
+                    if( pipeline!=null ) {
+                        pipeline.close();
+                        if( !pipeline.getFailed().isEmpty() ) {
+                            log.warn("{} studies failed the pipelined upload and are uploaded again: {}",
+                                    pipeline.getFailed().size(), pipeline.getFailed());
+                        }
+                    }
+                }
+            }
+            if( cl.hasOption("s3") ) {
+                uploadS3.uploadClient();
+                // Direct output is already in S3, while pipelined studies are skipped as already uploaded
+                if( !cl.hasOption("direct") ) uploadS3.upload(exportDir,studies);
+            }
         }
     }
 }
@@ -0,0 +1,35 @@
+package org.dcm4che.s3;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveConcurrencyTest {
+    @Test void rampsUpOnSuccess() throws Exception {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(2, 4);
+        for(int i=0; i<10; i++) {
+            concurrency.acquire();
+            concurrency.success();
+        }
+        assertEquals(4, concurrency.getLimit());
+    }
+
+    @Test void halvesOnceOnThrottle() throws Exception {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(8, 8);
+        for(int i=0; i<8; i++) {
+            concurrency.acquire();
+        }
+        // All the requests in flight are throttled together, which is one decrease
+        for(int i=0; i<8; i++) {
+            concurrency.throttled();
+        }
+        assertEquals(4, concurrency.getLimit());
+    }
+
+    @Test void neverBelowOne() throws Exception {
+        AdaptiveConcurrency concurrency = new AdaptiveConcurrency(1, 8);
+        concurrency.acquire();
+        concurrency.throttled();
+        assertEquals(1, concurrency.getLimit());
+    }
+}
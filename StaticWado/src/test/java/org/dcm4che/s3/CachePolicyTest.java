@@ -0,0 +1,18 @@
+package org.dcm4che.s3;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachePolicyTest {
+    @Test void classifiesKeys() {
+        CachePolicy policy = new CachePolicy(30);
+        assertEquals(CachePolicy.IMMUTABLE, policy.getCacheControl("dicomweb/bulkdata/ab/cd/ef.raw"));
+        assertEquals(CachePolicy.IMMUTABLE, policy.getCacheControl("dicomweb/studies/1.2/bulkdata/ab/cdef.raw"));
+        assertEquals(CachePolicy.IMMUTABLE, policy.getCacheControl("dicomweb/studies/1.2/series/1.3/instances/1.4/frames/1"));
+        assertEquals("public, max-age=30", policy.getCacheControl("dicomweb/studies"));
+        assertEquals("public, max-age=30", policy.getCacheControl("dicomweb/studies/1.2/series"));
+        assertEquals("public, max-age=30", policy.getCacheControl("dicomweb/studies/1.2/series/1.3/metadata"));
+        assertNull(policy.getCacheControl("index.html"));
+    }
+}
@@ -0,0 +1,223 @@
+package org.dcm4che.s3;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** An in memory S3, holding a single bucket, with just the operations used by the uploads */
+class FakeS3 extends AbstractAmazonS3 {
+    static final int PAGE_SIZE = 1000;
+
+    final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+    final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    final AtomicInteger puts = new AtomicInteger();
+    final AtomicInteger parts = new AtomicInteger();
+    final AtomicInteger lists = new AtomicInteger();
+    final AtomicInteger heads = new AtomicInteger();
+    /** The number of following puts to reject with 503 SlowDown */
+    final AtomicInteger throttleNext = new AtomicInteger();
+    /** Keys whose puts fail with access denied */
+    final java.util.Set<String> failKeys = ConcurrentHashMap.newKeySet();
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger maxInFlight = new AtomicInteger();
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request) {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            if( throttleNext.getAndUpdate(n -> Math.max(0, n-1))>0 ) {
+                AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+                e.setStatusCode(503);
+                e.setErrorCode("SlowDown");
+                throw e;
+            }
+            if( failKeys.contains(request.getKey()) ) {
+                AmazonS3Exception e = new AmazonS3Exception("Access Denied");
+                e.setStatusCode(403);
+                throw e;
+            }
+            puts.incrementAndGet();
+            byte[] data = request.getFile()!=null ? readFile(request) : read(request.getInputStream());
+            String contentMd5 = request.getMetadata()!=null ? request.getMetadata().getContentMD5() : null;
+            if( contentMd5!=null && !contentMd5.equals(java.util.Base64.getEncoder().encodeToString(hexToBytes(md5(data)))) ) {
+                AmazonS3Exception e = new AmazonS3Exception("BadDigest");
+                e.setStatusCode(400);
+                throw e;
+            }
+            store(request.getKey(), data, request.getMetadata());
+            PutObjectResult result = new PutObjectResult();
+            result.setETag(md5(data));
+            return result;
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, new TreeMap<>());
+        metadata.put(uploadId, request.getObjectMetadata());
+        InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+        result.setUploadId(uploadId);
+        return result;
+    }
+
+    @Override
+    public UploadPartResult uploadPart(UploadPartRequest request) {
+        parts.incrementAndGet();
+        byte[] data = read(request.getInputStream());
+        if( data.length!=request.getPartSize() ) throw new AmazonS3Exception("Part size mismatch");
+        uploads.get(request.getUploadId()).put(request.getPartNumber(), data);
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag("etag" + request.getPartNumber());
+        return result;
+    }
+
+    @Override
+    public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+        Map<Integer, byte[]> uploaded = uploads.remove(request.getUploadId());
+        if( uploaded.size()!=request.getPartETags().size() ) throw new AmazonS3Exception("Missing parts");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        uploaded.values().forEach(part -> bos.write(part, 0, part.length));
+        store(request.getKey(), bos.toByteArray(), metadata.remove(request.getUploadId()));
+        return new CompleteMultipartUploadResult();
+    }
+
+    @Override
+    public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+        uploads.remove(request.getUploadId());
+        metadata.remove(request.getUploadId());
+    }
+
+    @Override
+    public S3Object getObject(String bucketName, String key) {
+        byte[] data = objects.get(key);
+        if( data==null ) throw notFound(key);
+        S3Object object = new S3Object();
+        object.setKey(key);
+        object.setObjectMetadata(metadata.get(key));
+        object.setObjectContent(new ByteArrayInputStream(data));
+        return object;
+    }
+
+    @Override
+    public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+        heads.incrementAndGet();
+        ObjectMetadata ret = metadata.get(key);
+        if( ret==null ) throw notFound(key);
+        return ret;
+    }
+
+    @Override
+    public boolean doesObjectExist(String bucketName, String key) {
+        return objects.containsKey(key);
+    }
+
+    @Override
+    public CopyObjectResult copyObject(String sourceBucketName, String sourceKey, String destinationBucketName, String destinationKey) {
+        byte[] data = objects.get(sourceKey);
+        if( data==null ) throw notFound(sourceKey);
+        store(destinationKey, data, metadata.get(sourceKey));
+        return new CopyObjectResult();
+    }
+
+    @Override
+    public void deleteObject(String bucketName, String key) {
+        objects.remove(key);
+        metadata.remove(key);
+    }
+
+    @Override
+    public ListObjectsV2Result listObjectsV2(ListObjectsV2Request request) {
+        lists.incrementAndGet();
+        TreeMap<String, byte[]> sorted = new TreeMap<>(objects);
+        String after = request.getContinuationToken();
+        ListObjectsV2Result result = new ListObjectsV2Result();
+        for(Map.Entry<String, byte[]> entry : (after==null ? sorted : sorted.tailMap(after, false)).entrySet()) {
+            if( !entry.getKey().startsWith(request.getPrefix()) ) continue;
+            if( result.getObjectSummaries().size()==PAGE_SIZE ) {
+                result.setTruncated(true);
+                result.setNextContinuationToken(result.getObjectSummaries().get(PAGE_SIZE-1).getKey());
+                break;
+            }
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(entry.getKey());
+            summary.setSize(entry.getValue().length);
+            summary.setETag("\"" + md5(entry.getValue()) + "\"");
+            result.getObjectSummaries().add(summary);
+        }
+        return result;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    private void store(String key, byte[] data, ObjectMetadata objectMetadata) {
+        ObjectMetadata copy = objectMetadata!=null ? objectMetadata.clone() : new ObjectMetadata();
+        copy.setContentLength(data.length);
+        objects.put(key, data);
+        metadata.put(key, copy);
+    }
+
+    static String md5(byte[] data) {
+        try {
+            StringBuilder ret = new StringBuilder();
+            for(byte b : java.security.MessageDigest.getInstance("MD5").digest(data)) {
+                ret.append(String.format("%02x", b));
+            }
+            return ret.toString();
+        } catch(java.security.NoSuchAlgorithmException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] ret = new byte[hex.length()/2];
+        for(int i=0; i<ret.length; i++) {
+            ret[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+        }
+        return ret;
+    }
+
+    private static AmazonS3Exception notFound(String key) {
+        AmazonS3Exception e = new AmazonS3Exception("Not found " + key);
+        e.setStatusCode(404);
+        return e;
+    }
+
+    private static byte[] readFile(PutObjectRequest request) {
+        try {
+            return java.nio.file.Files.readAllBytes(request.getFile().toPath());
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] read(InputStream is) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16384];
+            int len;
+            while( (len = is.read(buffer))!=-1 ) {
+                bos.write(buffer, 0, len);
+            }
+            return bos.toByteArray();
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.dcm4che.s3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelinedUploadTest {
+    @TempDir
+    File dir;
+
+    @Test void uploadsAndDeletesEachStudy() throws Exception {
+        for(String uid : new String[]{"1.1", "1.2", "1.3"}) {
+            File series = new File(dir, "studies/" + uid + "/series");
+            series.mkdirs();
+            Files.write(new File(series, "index").toPath(), uid.getBytes());
+        }
+        FakeS3 s3 = new FakeS3();
+        s3.failKeys.add("dicomweb/studies/1.3/series/index");
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 4)) {
+            try(PipelinedUpload pipeline = new PipelinedUpload(upload, dir.getPath(), 1, true)) {
+                pipeline.accept("1.1");
+                pipeline.accept("1.2");
+                pipeline.accept("1.3");
+                pipeline.close();
+                assertEquals(Collections.singletonList("1.3"), pipeline.getFailed());
+            }
+        }
+        assertArrayEquals("1.1".getBytes(), s3.objects.get("dicomweb/studies/1.1/series/index"));
+        assertArrayEquals("1.2".getBytes(), s3.objects.get("dicomweb/studies/1.2/series/index"));
+        assertFalse(new File(dir, "studies/1.1").exists());
+        assertFalse(new File(dir, "studies/1.2").exists());
+        assertTrue(new File(dir, "studies/1.3/series/index").exists(), "Failed studies are kept");
+    }
+
+    @Test void keepsUploadingAfterAnError() throws Exception {
+        FakeS3 s3 = new FakeS3();
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 1) {
+            @Override
+            public void uploadStudy(String exportDir, String studyUid, boolean delete) {
+                if( studyUid.equals("1.1") ) throw new IllegalStateException("Test");
+            }
+        }) {
+            try(PipelinedUpload pipeline = new PipelinedUpload(upload, dir.getPath(), 1, false)) {
+                for(int i=1; i<=4; i++) {
+                    pipeline.accept("1." + i);
+                }
+                pipeline.close();
+                assertEquals(Collections.singletonList("1.1"), pipeline.getFailed());
+            }
+        }
+    }
+
+    @Test void recordsStudiesQueuedAfterTheThreadDied() throws Exception {
+        FakeS3 s3 = new FakeS3();
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 1) {
+            @Override
+            public void uploadStudy(String exportDir, String studyUid, boolean delete) {
+                throw new StackOverflowError("Test");
+            }
+        }) {
+            try(PipelinedUpload pipeline = new PipelinedUpload(upload, dir.getPath(), 1, false)) {
+                pipeline.accept("1.1");
+                // Studies queued before the thread died, and those offered after, are all recorded
+                for(int i=2; i<=4; i++) {
+                    pipeline.accept("1." + i);
+                }
+                pipeline.close();
+                List<String> failed = pipeline.getFailed();
+                failed.sort(null);
+                assertEquals(Arrays.asList("1.1", "1.2", "1.3", "1.4"), failed);
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.dcm4che.s3;
+
+import org.dcm4che.staticwado.ContentEncoding;
+import org.dcm4che.staticwado.FileHandler;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3StorageTest {
+    @TempDir
+    File dir;
+    private final FakeS3 s3 = new FakeS3();
+    private final S3Storage storage = new S3Storage(s3, "bucket", "dicomweb/", ContentEncoding.GZIP);
+
+    @Test void smallObjectIsOnePut() throws Exception {
+        FileHandler handler = new FileHandler(storage, "studies/1.2.3");
+        try(OutputStream os = handler.openForWrite("series")) {
+            os.write("[{}]".getBytes(StandardCharsets.UTF_8));
+            assertTrue(s3.objects.isEmpty(), "Nothing visible until close");
+        }
+        assertEquals(1, s3.puts.get());
+        assertEquals(0, s3.parts.get());
+        assertEquals("gzip", s3.metadata.get("dicomweb/studies/1.2.3/series").getContentEncoding());
+        assertEquals("application/json", s3.metadata.get("dicomweb/studies/1.2.3/series").getContentType());
+        try(InputStream is = handler.openForRead("series")) {
+            assertEquals("[{}]", new String(is.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test void largeObjectIsMultipart() throws Exception {
+        byte[] data = new byte[2 * S3Storage.DEFAULT_PART_SIZE + 1000];
+        new Random(1).nextBytes(data);
+        FileHandler handler = new FileHandler(storage, "bulkdata");
+        try(OutputStream os = handler.openForWrite("ab/cdef.raw", false)) {
+            for(int i=0; i<data.length; i+=100_000) {
+                os.write(data, i, Math.min(100_000, data.length-i));
+            }
+        }
+        assertEquals(0, s3.puts.get());
+        assertEquals(3, s3.parts.get());
+        assertArrayEquals(data, s3.objects.get("dicomweb/bulkdata/ab/cdef.raw"));
+        assertNull(s3.metadata.get("dicomweb/bulkdata/ab/cdef.raw").getContentEncoding());
+        assertTrue(s3.uploads.isEmpty());
+    }
+
+    @Test void stagedBulkdataIsStoredOnce() throws Exception {
+        FileHandler handler = new FileHandler(storage, "bulkdata");
+        FileHandler staging = handler.forStaging(dir);
+        try(OutputStream os = staging.openForWrite("first.tmp", false)) {
+            os.write(1);
+        }
+        assertTrue(handler.moveIfAbsent(staging, "first.tmp", "item.raw", false));
+        try(OutputStream os = staging.openForWrite("second.tmp", false)) {
+            os.write(2);
+        }
+        assertFalse(handler.moveIfAbsent(staging, "second.tmp", "item.raw", false));
+        assertEquals(1, s3.puts.get(), "Duplicates aren't uploaded");
+        assertEquals(1, s3.objects.size());
+        assertArrayEquals(new byte[]{1}, s3.objects.get("dicomweb/bulkdata/item.raw"));
+        assertEquals(0, dir.list().length, "Staging files are removed");
+    }
+
+    @Test void missingObjectReadsAsNull() throws Exception {
+        assertNull(new FileHandler(storage, "").openForRead("studies"));
+    }
+}
@@ -0,0 +1,58 @@
+package org.dcm4che.s3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadManifestTest {
+    @TempDir
+    File dir;
+
+    @Test void listsAllPages() {
+        FakeS3 s3 = new FakeS3();
+        for(int i=0; i<2500; i++) {
+            s3.objects.put("dicomweb/studies/" + i, new byte[]{(byte) i});
+        }
+        s3.objects.put("other/key", new byte[1]);
+        UploadManifest manifest = UploadManifest.list(s3, "bucket", "dicomweb/");
+        assertEquals(2500, manifest.size());
+        assertEquals(3, s3.lists.get());
+        assertNull(manifest.get("other/key"));
+    }
+
+    @Test void matchesByEtag() throws Exception {
+        File file = new File(dir, "frame");
+        byte[] data = "frame data".getBytes();
+        Files.write(file.toPath(), data);
+        UploadManifest manifest = new UploadManifest();
+        manifest.put("key", new UploadManifest.Entry(data.length, -1, FakeS3.md5(data)));
+        assertTrue(manifest.isCurrent("key", file, UploadS3.PART_SIZE));
+        manifest.put("key", new UploadManifest.Entry(data.length, -1, FakeS3.md5(new byte[data.length])));
+        assertFalse(manifest.isCurrent("key", file, UploadS3.PART_SIZE));
+        assertFalse(manifest.isCurrent("missing", file, UploadS3.PART_SIZE));
+    }
+
+    @Test void multipartEtag() throws Exception {
+        File file = new File(dir, "large");
+        byte[] data = new byte[(int) UploadS3.MULTIPART_THRESHOLD + 10];
+        data[5] = 1;
+        Files.write(file.toPath(), data);
+        String etag = UploadManifest.etag(file, UploadS3.PART_SIZE);
+        assertTrue(etag.endsWith("-3"), etag);
+    }
+
+    @Test void readsWhatIsWritten() throws Exception {
+        UploadManifest manifest = new UploadManifest();
+        manifest.put("dicomweb/studies/1/series", new UploadManifest.Entry(10, 1234, "abc"));
+        File file = new File(dir, "upload.manifest");
+        manifest.write(file);
+        UploadManifest read = UploadManifest.read(file);
+        assertEquals(1, read.size());
+        assertEquals("abc", read.get("dicomweb/studies/1/series").etag);
+        assertNull(UploadManifest.read(new File(dir, "missing")));
+    }
+}
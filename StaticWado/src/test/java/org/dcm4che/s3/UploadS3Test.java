@@ -0,0 +1,168 @@
+package org.dcm4che.s3;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadS3Test {
+    @TempDir
+    File dir;
+
+    @Test void uploadsConcurrentlyAndRetriesThrottled() throws Exception {
+        File series = new File(dir, "series");
+        series.mkdirs();
+        for(int i=0; i<200; i++) {
+            Files.write(new File(series, "frame" + i).toPath(), new byte[1000]);
+        }
+        FakeS3 s3 = new FakeS3();
+        s3.throttleNext.set(5);
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 8)) {
+            upload.uploadAll("dicomweb/", series);
+            upload.awaitUploads();
+            assertEquals(200, s3.objects.size());
+            assertEquals(5, upload.getStats().getThrottles());
+            assertEquals(200, upload.getStats().getFiles());
+        }
+        assertTrue(s3.maxInFlight.get()>1, "Uploads run concurrently");
+        assertTrue(s3.objects.containsKey("dicomweb/series/frame0"));
+    }
+
+    @Test void resyncUploadsOnlyChanges() throws Exception {
+        File series = new File(dir, "series");
+        series.mkdirs();
+        for(int i=0; i<20; i++) {
+            Files.write(new File(series, "item" + i).toPath(), new byte[]{(byte) i});
+        }
+        FakeS3 s3 = new FakeS3();
+        sync(s3, false);
+        assertEquals(20, s3.heads.get(), "First upload checks each object");
+        assertTrue(new File(dir, "upload-bucket.manifest").exists());
+
+        File changed = new File(series, "item3");
+        Files.write(changed.toPath(), new byte[]{99});
+        changed.setLastModified(changed.lastModified() + 10_000);
+        int puts = s3.puts.get();
+        assertEquals(19, sync(s3, false).getSkipped());
+        assertEquals(20, s3.heads.get(), "Manifest avoids HEAD requests");
+        assertEquals(puts + 1, s3.puts.get());
+
+        s3.objects.remove("dicomweb/series/item5");
+        assertEquals(19, sync(s3, true).getSkipped());
+        assertEquals(1, s3.lists.get());
+        assertTrue(s3.objects.containsKey("dicomweb/series/item5"));
+        assertEquals(20, s3.heads.get());
+    }
+
+    @Test void resumesFromJournal() throws Exception {
+        File series = new File(dir, "series");
+        series.mkdirs();
+        for(int i=0; i<20; i++) {
+            Files.write(new File(series, "item" + i).toPath(), new byte[]{(byte) i});
+        }
+        FakeS3 s3 = new FakeS3();
+        s3.failKeys.add("dicomweb/series/item7");
+        s3.failKeys.add("dicomweb/series/item11");
+        IOException failed = assertThrows(IOException.class, () -> sync(s3, false));
+        assertEquals(2, failed.getSuppressed().length);
+        assertEquals(18, s3.objects.size());
+        assertTrue(new File(dir, "upload-bucket.journal").exists());
+        assertFalse(new File(dir, "upload-bucket.manifest").exists());
+
+        s3.failKeys.clear();
+        int heads = s3.heads.get();
+        int puts = s3.puts.get();
+        assertEquals(18, sync(s3, false).getSkipped());
+        assertEquals(heads + 2, s3.heads.get(), "Only the failed objects are checked");
+        assertEquals(puts + 2, s3.puts.get());
+        assertEquals(20, s3.objects.size());
+        assertFalse(new File(dir, "upload-bucket.journal").exists());
+        assertTrue(new File(dir, "upload-bucket.manifest").exists());
+    }
+
+    @Test void failedUploadThrowsAfterJournal() throws Exception {
+        File study = new File(dir, "studies/1.2.3");
+        study.mkdirs();
+        Files.write(new File(study, "series.gz").toPath(), new byte[]{1});
+        Files.write(new File(study, "instances.gz").toPath(), new byte[]{2});
+        FakeS3 s3 = new FakeS3();
+        s3.failKeys.add("dicomweb/studies/1.2.3/series");
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 2)) {
+            assertThrows(IOException.class, () -> upload.upload(dir.getPath()));
+        }
+        String journal = new String(Files.readAllBytes(new File(dir, "upload-bucket.journal").toPath()));
+        assertTrue(journal.contains("dicomweb/studies/1.2.3/instances"));
+        assertFalse(new File(dir, "upload-bucket.manifest").exists());
+    }
+
+    @Test void setsCachingAndContentHash() throws Exception {
+        File frames = new File(dir, "instances/1.4/frames");
+        frames.mkdirs();
+        Files.write(new File(frames, "1").toPath(), new byte[]{1, 2, 3});
+        Files.write(new File(dir, "instances/1.4/metadata.gz").toPath(), new byte[]{4, 5});
+        FakeS3 s3 = new FakeS3();
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 2)) {
+            upload.uploadAll("dicomweb/", new File(dir, "instances"));
+            upload.awaitUploads();
+        }
+        ObjectMetadata frame = s3.metadata.get("dicomweb/instances/1.4/frames/1");
+        assertEquals(CachePolicy.IMMUTABLE, frame.getCacheControl());
+        assertEquals(FakeS3.md5(new byte[]{1, 2, 3}), frame.getUserMetaDataOf(UploadS3.CONTENT_HASH));
+        ObjectMetadata metadata = s3.metadata.get("dicomweb/instances/1.4/metadata");
+        assertEquals("public, max-age=" + CachePolicy.DEFAULT_INDEX_MAX_AGE, metadata.getCacheControl());
+        assertEquals("gzip", metadata.getContentEncoding());
+
+        // Without a manifest, a HEAD finds the same content hash, even though the file is newer
+        File frame1 = new File(frames, "1");
+        frame1.setLastModified(System.currentTimeMillis() + 60_000);
+        int puts = s3.puts.get();
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 2)) {
+            upload.uploadAll("dicomweb/", new File(dir, "instances"));
+            upload.awaitUploads();
+            assertEquals(2, upload.getStats().getSkipped());
+        }
+        assertEquals(puts, s3.puts.get());
+
+        // A different content hash uploads the file with the hash computed for the comparison
+        Files.write(frame1.toPath(), new byte[]{6, 7});
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 2)) {
+            upload.uploadAll("dicomweb/", new File(dir, "instances"));
+            upload.awaitUploads();
+            assertEquals(1, upload.getStats().getSkipped());
+        }
+        assertEquals(puts + 1, s3.puts.get());
+        assertEquals(FakeS3.md5(new byte[]{6, 7}), s3.metadata.get("dicomweb/instances/1.4/frames/1").getUserMetaDataOf(UploadS3.CONTENT_HASH));
+    }
+
+    @Test void uploadsOneEncodingVariant() throws Exception {
+        File study = new File(dir, "studies/1.2.3");
+        study.mkdirs();
+        Files.write(new File(study, "series.gz").toPath(), new byte[]{1});
+        Files.write(new File(study, "series.br").toPath(), new byte[]{2});
+        Files.write(new File(study, "series.zst").toPath(), new byte[]{3});
+        FakeS3 s3 = new FakeS3();
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 4)) {
+            upload.upload("dicomweb/studies/", study);
+            upload.awaitUploads();
+        }
+        assertEquals(1, s3.puts.get());
+        assertEquals("gzip", s3.metadata.get("dicomweb/studies/1.2.3/series").getContentEncoding());
+        assertEquals(FakeS3.md5(new byte[]{1}), s3.metadata.get("dicomweb/studies/1.2.3/series").getUserMetaDataOf(UploadS3.CONTENT_HASH));
+    }
+
+    private UploadStats sync(FakeS3 s3, boolean list) throws Exception {
+        try(UploadS3 upload = new UploadS3(s3, "bucket", 4)) {
+            upload.setSync(list);
+            upload.loadManifest(dir.getPath());
+            upload.uploadAll("dicomweb/", new File(dir, "series"));
+            upload.awaitUploads();
+            upload.saveManifest();
+            return upload.getStats();
+        }
+    }
+}
@@ -1,8 +1,6 @@
 package org.dcm4che.staticwado;
 
 import org.dcm4che3.data.*;
-import org.dcm4che3.imageio.codec.ImageWriterFactory;
-import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -11,8 +9,16 @@ import javax.imageio.stream.FileImageInputStream;
 import java.awt.image.*;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -54,8 +60,6 @@ public class BulkDataAccess {
 
     public static final String SEPARATOR = "BOUNDARY_FIXED_32934857949532587";
 
-    private final DicomImageReader imageReader =  (DicomImageReader) ImageIO.getImageReadersByFormatName("DICOM").next();
-
     public static final Map<String,String> CONTENT_TYPES = new HashMap<>();
     static {
         CONTENT_TYPES.put(UID.ImplicitVRLittleEndian,OCTET_STREAM);
@@ -77,35 +81,69 @@ public class BulkDataAccess {
         CONTENT_TYPES.put(UID.HEVCM10P51, VIDEO_H265);
     }
 
-    private ImageWriter compressor;
+    /** The shared content addressed store for non-image bulkdata, or null to store it per study */
+    private BulkdataStore bulkdataStore;
+
+    /** The mapping of the bulkdata being written, either the uncompressed frames of an instance or one bulkdata item */
+    private MappedRegion mapped;
+
+    // The number of frames converted by each task when converting frames in parallel
+    static final int FRAMES_PER_TASK = 4;
+
     private String tsuid = UID.ImplicitVRLittleEndian;
-    private ImageWriteParam compressParam;
+    /** The codec for frames converted on the calling thread, checked out while moving the bulkdata of an instance */
+    private Codec codec;
+    private CodecPool codecPool = CodecPool.getShared();
+    private ForkJoinPool framePool;
+    private CompressionPolicy compressionPolicy = CompressionPolicy.DEFAULT;
+    private File sourceFile;
+    private File stagingDir = new File(System.getProperty("java.io.tmpdir"));
 
     public BulkDataAccess(FileHandler handler) {
         this.handler = handler;
     }
 
+    /** Sets the pool used to convert the frames of multi-frame images in parallel, defaulting to null to convert them in-line */
+    public void setFramePool(ForkJoinPool framePool) {
+        this.framePool = framePool;
+    }
+
+    /**
+     * Sets the local directory that bulkdata is written to while it is hashed.  It is then stored once under its
+     * hash name, or dropped if that already exists, so nothing temporary is written to the storage.
+     */
+    public void setStagingDir(File stagingDir) {
+        this.stagingDir = stagingDir;
+    }
+
+    public void setBulkdataStore(BulkdataStore bulkdataStore) {
+        this.bulkdataStore = bulkdataStore;
+    }
+
+    /** Sets the policy deciding which outputs are compressed */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /** Sets the pool to check out codecs from, defaulting to the process wide shared pool */
+    public void setCodecPool(CodecPool codecPool) {
+        this.codecPool = codecPool;
+    }
+
     public void setTransferSyntaxUid(String tsuid) {
+        // Checking out a codec validates the transfer syntax, and leaves an idle codec in the pool
+        codecPool.checkin(codecPool.checkout(tsuid));
         this.tsuid = tsuid;
-        if( tsuid==null || UID.ImplicitVRLittleEndian.equals(tsuid) || UID.ExplicitVRLittleEndian.equals(tsuid)) {
-            compressor = null;
-            return;
-        }
-        ImageWriterFactory.ImageWriterParam param =
-                ImageWriterFactory.getImageWriterParam(tsuid);
-        if (param == null)
-            throw new UnsupportedOperationException(
-                    "Unsupported Transfer Syntax: " + tsuid);
+    }
 
+    /** A converted frame, ready to be written */
+    static class FrameData {
+        final Object data;
+        final String contentType;
 
-        this.compressor = ImageWriterFactory.getImageWriter(param);
-        this.compressParam = compressor.getDefaultWriteParam();
-        compressParam.setCompressionMode(
-                ImageWriteParam.MODE_EXPLICIT);
-        if( tsuid.equals(UID.JPEGLosslessSV1) ) {
-            compressParam.setCompressionType("LOSSLESS-1");
-        } else if( tsuid.equals(UID.JPEG2000Lossless) ) {
-            compressParam.setCompressionType("LOSSLESS");
+        FrameData(Object data, String contentType) {
+            this.data = data;
+            this.contentType = contentType;
         }
     }
 
@@ -127,11 +165,12 @@ public class BulkDataAccess {
         String seriesUID = attr.getString(Tag.SeriesInstanceUID);
         String sopUID = attr.getString(Tag.SOPInstanceUID);
         // TODO - move this up so we only read the stream metadata once and so we correctly handle non-image large bulkdata
+        codec = codecPool.checkout(tsuid);
         try (FileImageInputStream fiis = new FileImageInputStream(file) ) {
-            imageReader.setInput(fiis);
+            codec.reader.setInput(fiis);
+            sourceFile = file;
             attr.accept((retrievePath, tag, vr, value) -> {
                 if (value instanceof BulkData) {
-                    handler.setGzip(true);
                     BulkData bulk = (BulkData) value;
                     log.debug("Moving bulkdata item {}", bulk.getURI());
                     if( tag==Tag.PixelData ) {
@@ -158,6 +197,10 @@ public class BulkDataAccess {
         } catch (Exception e) {
             log.warn("Unable to move item because", e);
             throw new Error(e);
+        } finally {
+            sourceFile = null;
+            codecPool.checkin(codec);
+            codec = null;
         }
     }
 
@@ -174,20 +217,32 @@ public class BulkDataAccess {
         }
         imageLen /= 8;
 
+        String origUri = bulk.getURI();
+        long origOffset = getOffset(origUri);
         if( imageLen==0 ) {
             frames = 1;
-            imageLen = bulk.getFile().length();
+            // The bulk file may be the whole source file when the bulkdata is referenced in place
+            imageLen = getLength(origUri);
+            if( imageLen==Long.MAX_VALUE ) imageLen = bulk.getFile().length() - origOffset;
         }
-        String origUri = bulk.getURI();
-        long origOffset = getOffset(origUri);
         String baseUri = origUri.contains("?") ? origUri.substring(0,origUri.indexOf('?')) : origUri;
         String frameName = "series/"+seriesUid + "/instances/"+ sopUid + "/frames/";
-
+        List<BulkData> frameBulk = new ArrayList<>(frames);
         for(int i=1; i<= frames; i++) {
-            bulk.setURI(baseUri + "?offset="+(origOffset+imageLen*i-imageLen)+"&length="+imageLen);
-            convertImageFormat(attr, frameName+i, i, bulk, false);
+            frameBulk.add(new BulkData(null, baseUri + "?offset="+(origOffset+imageLen*i-imageLen)+"&length="+imageLen, bulk.bigEndian()));
+        }
+
+        // Single frames are mapped too, so that they are sampled for compression and copied without reopening the file
+        try {
+            mapped = MappedRegion.map(bulk.getFile(), origOffset, imageLen*frames);
+        } catch(IOException e) {
+            log.warn("Unable to map frames of {}, reading them individually", sopUid, e);
+        }
+        try {
+            saveFrames(sourceFile, attr, frameName, frameBulk, false);
+        } finally {
+            mapped = null;
         }
-        bulk.setURI(origUri);
     }
 
     public static boolean isMultiframe(Attributes attr) {
@@ -210,16 +265,14 @@ public class BulkDataAccess {
         String extension = EXTENSIONS.get(contentType);
         String dest = "series/"+seriesUid + "/instances/"+ sopUid + "/frames/1"+(extension==null ? "" : ("."+extension));
         log.warn("Writing single part {} content type {}", dest, contentType);
-        handler.setGzip(false);
         long length = 0;
-        try(OutputStream os = handler.openForWrite(dest)) {
+        try(OutputStream os = handler.openForWrite(dest, false)) {
             for(int i=1; i< fragments.size(); i++) {
                 length += copyFrom(fragments.get(i),os);
             }
         } catch(IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException("Unable to save video " + dest, e);
         }
-        handler.setGzip(true);
         attr.setValue(Tag.PixelData,VR.OB, new BulkData(null,dest+"?length="+length, false));
     }
 
@@ -235,9 +288,81 @@ public class BulkDataAccess {
         boolean fragmented = fragments.size()!=frames+1;
 
         log.debug("Source content type {} desired frames content type {} desired hashContent type {}", tsuid);
+        List<BulkData> frameBulk = new ArrayList<>(fragments.size());
         for(int i=1; i<fragments.size(); i++) {
-            BulkData bulk = (BulkData) fragments.get(i);
-            convertImageFormat(attr, frameName+i, i, bulk, fragmented);
+            frameBulk.add((BulkData) fragments.get(i));
+        }
+        saveFrames(sourceFile, attr, frameName, frameBulk, fragmented);
+    }
+
+    /**
+     * Converts and writes the given frames.  When the frames need to be decoded, chunks of frames are converted
+     * in parallel on the frame pool, each worker with its own codec and reader, and then written in frame order.
+     */
+    void saveFrames(File source, Attributes attr, String frameName, List<BulkData> frames, boolean fragmented) {
+        String sourceTsuid = attr.getString(Tag.AvailableTransferSyntaxUID);
+        int parallelism = framePool!=null ? framePool.getParallelism() : 1;
+        if( frames.size()<2 || parallelism<2 || source==null || !isConverted(sourceTsuid, fragmented) ) {
+            for(int i=1; i<=frames.size(); i++) {
+                convertImageFormat(attr, frameName+i, i, frames.get(i-1), fragmented);
+            }
+            return;
+        }
+        List<CompletableFuture<FrameData[]>> chunks = new ArrayList<>();
+        for(int first=0; first<frames.size(); first += FRAMES_PER_TASK) {
+            chunks.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        // Limit how far the workers get ahead of the writing, so only a few converted frames per worker are held in memory
+        Semaphore ahead = new Semaphore(2 * parallelism);
+        for(int i=0; i<Math.min(parallelism, chunks.size()); i++) {
+            framePool.execute(() -> convertFrames(source, attr, frames, chunks, next, ahead, fragmented));
+        }
+        try {
+            int frame = 0;
+            for(CompletableFuture<FrameData[]> chunk : chunks) {
+                for(FrameData data : chunk.join()) {
+                    frame++;
+                    writeFrame(frameName+frame, data);
+                }
+                ahead.release();
+            }
+        } finally {
+            // Stops the workers if writing failed
+            next.set(chunks.size());
+            ahead.release(chunks.size());
+        }
+    }
+
+    /**
+     * Converts the next unclaimed chunk of frames until there are none left, opening one reader of source for all
+     * the chunks this worker converts.  A failure fails the chunk being converted and all the unclaimed chunks.
+     */
+    private void convertFrames(File source, Attributes attr, List<BulkData> frames, List<CompletableFuture<FrameData[]>> chunks,
+                               AtomicInteger next, Semaphore ahead, boolean fragmented) {
+        Codec worker = codecPool.checkout(tsuid);
+        int chunk = -1;
+        try(FileImageInputStream fiis = new FileImageInputStream(source)) {
+            worker.reader.setInput(fiis);
+            while( true ) {
+                ahead.acquireUninterruptibly();
+                chunk = next.getAndIncrement();
+                if( chunk>=chunks.size() ) return;
+                int from = chunk*FRAMES_PER_TASK;
+                FrameData[] ret = new FrameData[Math.min(FRAMES_PER_TASK, frames.size()-from)];
+                for(int i=0; i<ret.length; i++) {
+                    ret[i] = convertFrame(worker, attr, from+i+1, frames.get(from+i), fragmented);
+                }
+                chunks.get(chunk).complete(ret);
+            }
+        } catch(Throwable e) {
+            Throwable error = e instanceof IOException ? new UncheckedIOException("Unable to read frames of " + source, (IOException) e) : e;
+            if( chunk>=0 && chunk<chunks.size() ) chunks.get(chunk).completeExceptionally(error);
+            while( (chunk=next.getAndIncrement())<chunks.size() ) {
+                chunks.get(chunk).completeExceptionally(error);
+            }
+        } finally {
+            codecPool.checkin(worker);
         }
     }
 
@@ -248,24 +373,30 @@ public class BulkDataAccess {
     public void saveMultipart(String dest, Object value, String contentType, String separator) {
         byte[] separatorBytes = separator.getBytes(StandardCharsets.UTF_8);
         log.debug("Writing multipart {} content type {}", dest, contentType);
-        try(OutputStream os = handler.openForWrite(dest)) {
-            os.write(DASH_BYTES);
-            os.write(separatorBytes);
-            os.write(NEWLINE_BYTES);
-            os.write(CONTENT_TYPE_BYTES);
-            os.write(contentType.getBytes(StandardCharsets.UTF_8));
-            os.write(NEWLINE_BYTES);
-            os.write(NEWLINE_BYTES);
-            copyFrom(value,os);
-            os.write(NEWLINE_BYTES);
-            os.write(DASH_BYTES);
-            os.write(separatorBytes);
-            os.write(DASH_BYTES);
+        try(OutputStream os = handler.openForWrite(dest, shouldCompress(value, contentType))) {
+            writeMultipart(os, value, contentType, separatorBytes, null);
         } catch(IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException("Unable to save " + dest, e);
         }
     }
 
+    /** Writes value as a multipart, adding just the value bytes to digest if it is provided */
+    private long writeMultipart(OutputStream os, Object value, String contentType, byte[] separatorBytes, MessageDigest digest) throws IOException {
+        os.write(DASH_BYTES);
+        os.write(separatorBytes);
+        os.write(NEWLINE_BYTES);
+        os.write(CONTENT_TYPE_BYTES);
+        os.write(contentType.getBytes(StandardCharsets.UTF_8));
+        os.write(NEWLINE_BYTES);
+        os.write(NEWLINE_BYTES);
+        long length = copyFrom(value, digest==null ? os : new DigestOutputStream(os, digest));
+        os.write(NEWLINE_BYTES);
+        os.write(DASH_BYTES);
+        os.write(separatorBytes);
+        os.write(DASH_BYTES);
+        return length;
+    }
+
     /** Saves an object as singlepart */
     public void saveSinglepart(String dest, Object value, String contentType) {
         String extension = EXTENSIONS.get(contentType);
@@ -274,13 +405,56 @@ public class BulkDataAccess {
             return;
         }
         log.warn("Writing single part {}.{} content type {}", dest, extension, contentType);
-        handler.setGzip(false);
-        try(OutputStream os = handler.openForWrite(dest+"."+extension)) {
+        try(OutputStream os = handler.openForWrite(dest+"."+extension, false)) {
             copyFrom(value,os);
         } catch(IOException e) {
-            e.printStackTrace();
+            throw new UncheckedIOException("Unable to save " + dest + "." + extension, e);
+        }
+    }
+
+    /**
+     * Applies the compression policy to value, probing a sample of binary content.  The sample comes from the
+     * mapping of the bulkdata being written when there is one, and the file is only read when the policy needs it.
+     */
+    private boolean shouldCompress(Object value, String contentType) {
+        if( !OCTET_STREAM.equals(contentType) ) {
+            return compressionPolicy.shouldCompress(contentType, -1, null);
+        }
+        try {
+            if( value instanceof byte[] ) {
+                byte[] data = (byte[]) value;
+                ByteArrayOutputStream sample = new ByteArrayOutputStream();
+                for(long offset : CompressionPolicy.sampleOffsets(data.length)) {
+                    sample.write(data, (int) offset, (int) Math.min(CompressionPolicy.SAMPLE_CHUNK_SIZE, data.length-offset));
+                }
+                return compressionPolicy.shouldCompress(contentType, data.length, sample.toByteArray());
+            }
+            BulkData bulk = (BulkData) value;
+            String uri = bulk.getURI();
+            long start = getOffset(uri);
+            long length = getLength(uri);
+            if( mapped!=null && mapped.contains(bulk.getFile(), start, length) ) {
+                return compressionPolicy.shouldCompress(contentType, length, mapped.sample(start, length));
+            }
+            // Small items aren't compressed whatever they hold, so don't read them
+            if( length!=Long.MAX_VALUE && !compressionPolicy.shouldCompress(contentType, length, null) ) return false;
+            try(FileChannel channel = FileChannel.open(bulk.getFile().toPath(), StandardOpenOption.READ)) {
+                long end = Math.min(channel.size(), length==Long.MAX_VALUE ? Long.MAX_VALUE : start+length);
+                long available = Math.max(0, end-start);
+                ByteArrayOutputStream sample = new ByteArrayOutputStream();
+                for(long offset : CompressionPolicy.sampleOffsets(available)) {
+                    ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CompressionPolicy.SAMPLE_CHUNK_SIZE, available-offset));
+                    while( chunk.hasRemaining() && channel.read(chunk, start+offset+chunk.position())>0 ) {
+                        // Keep reading until the chunk is full
+                    }
+                    sample.write(chunk.array(), 0, chunk.position());
+                }
+                return compressionPolicy.shouldCompress(contentType, available, sample.toByteArray());
+            }
+        } catch(IOException e) {
+            log.debug("Unable to sample {}, compressing it", value, e);
+            return true;
         }
-        handler.setGzip(true);
     }
 
     private static final Pattern OFFSET_REGEXP = Pattern.compile("offset=([0-9]+)");
@@ -312,28 +486,70 @@ public class BulkDataAccess {
         String uri = bulk.getURI();
         long start = getOffset(uri);
         long length = getLength(uri);
-        try(InputStream is = new FileInputStream(bulk.getFile())) {
-            is.skip(start);
-            byte[] buffer = new byte[16384];
-            long currentLength = 0;
-            while(currentLength < length) {
-                int maxBytes = (int) Math.min(length-currentLength,buffer.length);
-                int readLen = is.read(buffer,0,maxBytes);
-                if( readLen==-1 ) break;
-                currentLength += readLen;
-                os.write(buffer,0,readLen);
+        File file = bulk.getFile();
+        if( mapped!=null && mapped.contains(file, start, length) ) {
+            return mapped.copyTo(start, length, os);
+        }
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long end = Math.min(channel.size(), length==Long.MAX_VALUE ? Long.MAX_VALUE : start+length);
+            if( os instanceof FileOutputStream ) {
+                // Let the kernel copy straight from the source file to the destination file
+                FileChannel out = ((FileOutputStream) os).getChannel();
+                for(long position=start; position<end; ) {
+                    long count = channel.transferTo(position, end-position, out);
+                    if( count<=0 ) break;
+                    position += count;
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MappedRegion.COPY_BUFFER_SIZE, Math.max(0,end-start)));
+                for(long position=start; position<end; ) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end-position));
+                    int readLen = channel.read(buffer, position);
+                    if( readLen==-1 ) break;
+                    position += readLen;
+                    os.write(buffer.array(), 0, readLen);
+                }
             }
-            return length;
+            return Math.max(0, end-start);
         }
     }
 
-    /** Saves normal bulkdata information, eg non-image */
+    /** Saves normal bulkdata information, eg non-image.
+     * The data is hashed while it is written to a local staging file, which is then stored under the hash name,
+     * so that the bulkdata is only read once, and is only stored if it isn't already there. */
     private void saveBulkdata(String studyUid, BulkData bulk, String contentType) {
-        String uri = bulk.getURI();
-        String hash = handler.hashOf(bulk.getFile(), getOffset(uri), getLength(uri));
-        String bulkName = "bulkdata/" + hash + ".raw";
-        saveMultipart(bulkName,bulk,contentType, SEPARATOR);
-        String finalUri = studyUid + "/" + bulkName;
+        MessageDigest digest = FileHandler.createDigest();
+        FileHandler bulkHandler = bulkdataStore!=null ? bulkdataStore.getHandler() : handler;
+        FileHandler staging = bulkHandler.forStaging(bulkdataStore!=null ? bulkdataStore.getStagingDir() : stagingDir);
+        String tempName = UUID.randomUUID() + ".tmp";
+        String bulkName;
+        // Map the item, so that it is sampled for compression and copied without opening the file twice
+        try {
+            mapped = MappedRegion.map(bulk.getFile(), getOffset(bulk.getURI()), getLength(bulk.getURI()));
+        } catch(IOException e) {
+            log.debug("Unable to map {}, reading it", bulk.getURI(), e);
+        }
+        boolean compress = shouldCompress(bulk, contentType);
+        try {
+            try(OutputStream os = staging.openForWrite(tempName, compress)) {
+                writeMultipart(os, bulk, contentType, SEPARATOR.getBytes(StandardCharsets.UTF_8), digest);
+            }
+            if( bulkdataStore!=null ) {
+                bulkName = FileHandler.hashPath(digest, 2) + ".raw";
+            } else {
+                bulkName = "bulkdata/" + FileHandler.hashPath(digest) + ".raw";
+            }
+            bulkHandler.moveIfAbsent(staging, tempName, bulkName, compress);
+            // Only reference bulkdata which was actually stored
+            if( bulkdataStore!=null ) bulkdataStore.addReference(studyUid, bulkName);
+        } catch(IOException e) {
+            staging.delete(tempName);
+            throw new UncheckedIOException("Unable to save bulkdata " + bulk.getURI(), e);
+        } finally {
+            mapped = null;
+        }
+        String finalUri = bulkdataStore!=null ? bulkdataStore.getUri(bulkName) : (studyUid + "/" + bulkName);
         log.debug("Final uri = {} was {}", finalUri, bulk.getURI());
         bulk.setURI(finalUri);
     }
@@ -344,46 +560,56 @@ public class BulkDataAccess {
      * It then writes it out to the given destination file as a multipart/related instance.
      */
     public void convertImageFormat(Attributes attr, String dest, int frame, BulkData bulk, boolean fragmented) {
-        Object writeData = bulk;
+        writeFrame(dest, convertFrame(codec, attr, frame, bulk, fragmented));
+    }
+
+    /** Returns true if frames from the source transfer syntax need to be decoded before being written */
+    private boolean isConverted(String sourceTsuid, boolean fragmented) {
+        return tsuid!=null && !tsuid.equalsIgnoreCase(sourceTsuid) || fragmented;
+    }
+
+    /** Converts a single frame, using codec, whose reader input must already be set to the source file */
+    FrameData convertFrame(Codec codec, Attributes attr, int frame, BulkData bulk, boolean fragmented) {
         String sourceTsuid = attr.getString(Tag.AvailableTransferSyntaxUID);
         String writeType = CONTENT_TYPES.get(sourceTsuid);
         if( writeType==null ) writeType = OCTET_STREAM;
-        if( imageReader!=null && (tsuid!=null && !tsuid.equalsIgnoreCase(sourceTsuid) || fragmented) ) {
-            log.warn("Converting image from {} to {}", sourceTsuid, tsuid);
-            try {
-                WritableRaster r = (WritableRaster) imageReader.readRaster(frame-1, imageReader.getDefaultReadParam());
-                if( compressor!=null ) {
-                    ImageTypeSpecifier specifier = imageReader.getRawImageType(frame-1);
-                    BufferedImage bi = new BufferedImage(specifier.getColorModel(),r,false,null);
-                    try(ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(attr)) {
-                        compressor.setOutput(ios);
-                        compressor.write(null,new IIOImage(bi,null,null), compressParam);
-                        writeData = ios.toByteArray();
-                        writeType = CONTENT_TYPES.get(tsuid);
-                        handler.setGzip(false);
-                        log.warn("Converted {} to {} length {} type {}", sourceTsuid, tsuid, ((byte[]) writeData).length, writeType);
-                    }
-                } else {
-                    log.debug("Write source type {} uncompressed", sourceTsuid);
-                    DataBuffer buf = r.getDataBuffer();
-                    writeData = toBytes(buf);
-                    writeType = OCTET_STREAM;
-                    if( writeData==null ) {
-                        log.error("Unable to convert data buffer from {} to bytes", buf.getClass());
-                        writeData = bulk;
-                    }
+        if( !isConverted(sourceTsuid, fragmented) ) {
+            log.warn("Leaving {} as original type {} tsuid {}", sourceTsuid, writeType, tsuid);
+            return new FrameData(bulk, writeType);
+        }
+        log.warn("Converting image from {} to {}", sourceTsuid, tsuid);
+        try {
+            WritableRaster r = (WritableRaster) codec.reader.readRaster(frame-1, codec.reader.getDefaultReadParam());
+            if( codec.writer!=null ) {
+                ImageTypeSpecifier specifier = codec.reader.getRawImageType(frame-1);
+                BufferedImage bi = new BufferedImage(specifier.getColorModel(),r,false,null);
+                try(ExtMemoryCacheImageOutputStream ios = new ExtMemoryCacheImageOutputStream(attr)) {
+                    codec.writer.setOutput(ios);
+                    codec.writer.write(null,new IIOImage(bi,null,null), codec.writeParam);
+                    byte[] writeData = ios.toByteArray();
+                    log.warn("Converted {} to {} length {} type {}", sourceTsuid, tsuid, writeData.length, CONTENT_TYPES.get(tsuid));
+                    return new FrameData(writeData, CONTENT_TYPES.get(tsuid));
                 }
-            } catch(IOException e) {
-                log.error("Couldn't convert image because {}",e);
-                e.printStackTrace();
             }
-        } else {
-            log.warn("Leaving {} as original type {} imageReader {} tsuid {}", sourceTsuid, writeType, imageReader, tsuid);
+            log.debug("Write source type {} uncompressed", sourceTsuid);
+            DataBuffer buf = r.getDataBuffer();
+            byte[] writeData = toBytes(buf);
+            if( writeData==null ) {
+                log.error("Unable to convert data buffer from {} to bytes", buf.getClass());
+                return new FrameData(bulk, OCTET_STREAM);
+            }
+            return new FrameData(writeData, OCTET_STREAM);
+        } catch(IOException e) {
+            log.error("Couldn't convert image because {}",e);
+            e.printStackTrace();
+            return new FrameData(bulk, writeType);
         }
-        log.debug("Original bulkdata source is {}", bulk.getURI());
-        saveMultipart(dest, writeData, writeType, SEPARATOR);
-        saveSinglepart(dest, writeData, writeType);
-        handler.setGzip(true);
+    }
+
+    /** Writes a converted frame as multipart and, for image types, as single part */
+    private void writeFrame(String dest, FrameData frame) {
+        saveMultipart(dest, frame.data, frame.contentType, SEPARATOR);
+        saveSinglepart(dest, frame.data, frame.contentType);
     }
 
     public static byte[] toBytes(short[] data) {
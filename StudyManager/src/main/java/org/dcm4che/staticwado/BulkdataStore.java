@@ -0,0 +1,169 @@
+package org.dcm4che.staticwado;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * A content addressed bulkdata store shared by all studies, laid out as bulkdata/HASH1/HASH2/HASH3.raw
+ * beside the studies directory.  Identical bulkdata is only stored once, no matter how many studies use it.
+ * <p>
+ * A reference count index records which studies use each item: refs/STUDY_UID lists the items used by
+ * each study, and refcounts holds the summed counts.  Items which are no longer referenced by any study
+ * are deleted on close.  If a run stops before the counts are written, they are rebuilt from the refs lists.
+ * <p>
+ * Items are hashed while they are written to the local staging directory, which is left over if a run stops part
+ * way through, so it is emptied when the store is opened.
+ */
+public class BulkdataStore implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(BulkdataStore.class);
+
+    public static final String BULKDATA_DIR = "bulkdata";
+    static final String REFS_DIR = "refs";
+    static final String REFCOUNTS = "refcounts";
+    static final String DIRTY = "refcounts.dirty";
+    static final String STAGING_DIR = "staging";
+    /** Where earlier versions wrote items while hashing them, which may hold files left by a stopped run */
+    static final String OLD_STAGING_DIR = "bulkdata";
+
+    private final File rootDir;
+    private final File refsDir;
+    private final FileHandler handler;
+    private final Map<String, Integer> counts = new HashMap<>();
+    /** The references added for each study being written in this run */
+    private final Map<String, Set<String>> pendingRefs = new HashMap<>();
+
+    public BulkdataStore(File rootDir) {
+        this(rootDir, new FileHandler(rootDir));
+    }
+
+    /**
+     * Creates a store whose items are written with handler, for example to an object store, while the reference
+     * count index is kept in the local rootDir.
+     */
+    public BulkdataStore(File rootDir, FileHandler handler) {
+        this.rootDir = rootDir;
+        this.refsDir = new File(rootDir, REFS_DIR);
+        this.handler = handler;
+        FileHandler.deleteRecursively(getStagingDir());
+        FileHandler.deleteRecursively(new File(rootDir, OLD_STAGING_DIR));
+        loadCounts();
+    }
+
+    /** Returns true for the local index and staging files, which are not part of the published store */
+    public static boolean isIndex(File file) {
+        String name = file.getName();
+        return name.equals(REFS_DIR) || name.equals(REFCOUNTS) || name.equals(DIRTY)
+                || name.equals(STAGING_DIR) || name.equals(OLD_STAGING_DIR);
+    }
+
+    /** The local directory items are written to while they are hashed, before being stored under the hash name */
+    public File getStagingDir() {
+        return new File(rootDir, STAGING_DIR);
+    }
+
+    /** The handler to write items with, relative to the store root */
+    public FileHandler getHandler() {
+        return handler;
+    }
+
+    /** Returns the URI for an item, relative to the studies directory */
+    public String getUri(String name) {
+        return "../" + BULKDATA_DIR + "/" + name;
+    }
+
+    /** Records that studyUid refers to the item name */
+    public synchronized void addReference(String studyUid, String name) {
+        pendingRefs.computeIfAbsent(studyUid, key -> new HashSet<>()).add(name);
+    }
+
+    /** Replaces the reference list for the study with the references added since it was opened */
+    public synchronized void commitStudy(String studyUid) throws IOException {
+        Set<String> refs = pendingRefs.remove(studyUid);
+        if (refs == null) refs = Collections.emptySet();
+        File refsFile = new File(refsDir, studyUid);
+        Set<String> oldRefs = readRefs(refsFile);
+        if (oldRefs.equals(refs)) return;
+        markDirty();
+        for (String name : refs) {
+            if (!oldRefs.contains(name)) counts.merge(name, 1, Integer::sum);
+        }
+        for (String name : oldRefs) {
+            if (!refs.contains(name)) counts.merge(name, -1, Integer::sum);
+        }
+        if (refs.isEmpty()) {
+            Files.deleteIfExists(refsFile.toPath());
+        } else {
+            writeLines(refsFile, refs);
+        }
+    }
+
+    /** Writes the reference counts, and deletes the items which are no longer referenced */
+    @Override
+    public synchronized void close() throws IOException {
+        File dirty = new File(rootDir, DIRTY);
+        if (!dirty.exists()) return;
+        Iterator<Map.Entry<String, Integer>> it = counts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            if (entry.getValue() > 0) continue;
+            log.info("Removing unreferenced bulkdata {}", entry.getKey());
+            handler.delete(entry.getKey());
+            it.remove();
+        }
+        List<String> lines = new ArrayList<>(counts.size());
+        counts.forEach((name, count) -> lines.add(name + " " + count));
+        writeLines(new File(rootDir, REFCOUNTS), lines);
+        Files.delete(dirty.toPath());
+    }
+
+    private void markDirty() throws IOException {
+        File dirty = new File(rootDir, DIRTY);
+        if (!dirty.exists()) {
+            rootDir.mkdirs();
+            dirty.createNewFile();
+        }
+    }
+
+    private void loadCounts() {
+        try {
+            if (new File(rootDir, DIRTY).exists()) {
+                log.warn("Rebuilding bulkdata reference counts in {}", rootDir);
+                File[] refsFiles = refsDir.listFiles();
+                if (refsFiles == null) return;
+                for (File refsFile : refsFiles) {
+                    for (String name : readRefs(refsFile)) {
+                        counts.merge(name, 1, Integer::sum);
+                    }
+                }
+                return;
+            }
+            File countsFile = new File(rootDir, REFCOUNTS);
+            if (!countsFile.exists()) return;
+            for (String line : Files.readAllLines(countsFile.toPath(), StandardCharsets.UTF_8)) {
+                int split = line.lastIndexOf(' ');
+                if (split > 0) counts.put(line.substring(0, split), Integer.parseInt(line.substring(split + 1)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read bulkdata reference counts from " + rootDir, e);
+        }
+    }
+
+    private static Set<String> readRefs(File refsFile) throws IOException {
+        if (!refsFile.exists()) return Collections.emptySet();
+        return new HashSet<>(Files.readAllLines(refsFile.toPath(), StandardCharsets.UTF_8));
+    }
+
+    /** Writes lines to file, replacing it atomically */
+    private static void writeLines(File file, Collection<String> lines) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        Files.write(temp.toPath(), lines, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
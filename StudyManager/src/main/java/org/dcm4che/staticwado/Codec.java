@@ -0,0 +1,49 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.UID;
+import org.dcm4che3.imageio.codec.ImageWriterFactory;
+import org.dcm4che3.imageio.plugins.dcm.DicomImageReader;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+
+/** A DICOM image reader, and the image writer for a destination transfer syntax.  Used by one thread at a time,
+ * see CodecPool for sharing them.
+ */
+public class Codec {
+    final String tsuid;
+    final DicomImageReader reader = (DicomImageReader) ImageIO.getImageReadersByFormatName("DICOM").next();
+    final ImageWriter writer;
+    final ImageWriteParam writeParam;
+
+    Codec(String tsuid) {
+        this.tsuid = tsuid;
+        if( UID.ImplicitVRLittleEndian.equals(tsuid) || UID.ExplicitVRLittleEndian.equals(tsuid)) {
+            writer = null;
+            writeParam = null;
+            return;
+        }
+        ImageWriterFactory.ImageWriterParam param =
+                ImageWriterFactory.getImageWriterParam(tsuid);
+        if (param == null)
+            throw new UnsupportedOperationException(
+                    "Unsupported Transfer Syntax: " + tsuid);
+
+        this.writer = ImageWriterFactory.getImageWriter(param);
+        this.writeParam = writer.getDefaultWriteParam();
+        writeParam.setCompressionMode(
+                ImageWriteParam.MODE_EXPLICIT);
+        if( tsuid.equals(UID.JPEGLosslessSV1) ) {
+            writeParam.setCompressionType("LOSSLESS-1");
+        } else if( tsuid.equals(UID.JPEG2000Lossless) ) {
+            writeParam.setCompressionType("LOSSLESS");
+        }
+    }
+
+    /** Clears the input and output, so the codec doesn't hold onto them while idle */
+    void reset() {
+        reader.setInput(null);
+        if( writer!=null ) writer.setOutput(null);
+    }
+}
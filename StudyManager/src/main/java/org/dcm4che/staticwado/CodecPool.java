@@ -0,0 +1,62 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.UID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A process wide pool of codecs, keyed by the destination transfer syntax.  Looking up the ImageIO readers and
+ * writers and initializing the native codecs is expensive, so codecs are checked out for the conversion of an
+ * instance and then returned for re-use by any study, on any thread.
+ */
+public class CodecPool {
+    private static final Logger log = LoggerFactory.getLogger(CodecPool.class);
+
+    private static final CodecPool SHARED = new CodecPool();
+
+    private final Map<String, Queue<Codec>> idle = new ConcurrentHashMap<>();
+
+    /** The pool shared by all the bulkdata access instances */
+    public static CodecPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns an idle codec for tsuid, or a new one if none are idle.
+     * @throws UnsupportedOperationException if the transfer syntax can't be written.
+     */
+    public Codec checkout(String tsuid) {
+        Codec codec = idleFor(tsuid).poll();
+        return codec!=null ? codec : new Codec(keyOf(tsuid));
+    }
+
+    /** Returns a codec to the pool, once the caller is done with it */
+    public void checkin(Codec codec) {
+        codec.reset();
+        idleFor(codec.tsuid).offer(codec);
+    }
+
+    /** Creates codecs for tsuid until there are at least count idle, so the first studies don't pay for them */
+    public void warm(String tsuid, int count) {
+        Queue<Codec> codecs = idleFor(tsuid);
+        int created = 0;
+        while( codecs.size()<count ) {
+            codecs.offer(new Codec(keyOf(tsuid)));
+            created++;
+        }
+        log.debug("Created {} codecs for {}", created, keyOf(tsuid));
+    }
+
+    private Queue<Codec> idleFor(String tsuid) {
+        return idle.computeIfAbsent(keyOf(tsuid), key -> new ConcurrentLinkedQueue<>());
+    }
+
+    private static String keyOf(String tsuid) {
+        return tsuid==null ? UID.ImplicitVRLittleEndian : tsuid;
+    }
+}
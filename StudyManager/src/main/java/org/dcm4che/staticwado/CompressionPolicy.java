@@ -0,0 +1,76 @@
+package org.dcm4che.staticwado;
+
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether each output is worth compressing.  Images and video are already compressed, while JSON and text
+ * always compress well.  Small outputs gain little, and uncompressed pixel and other binary data varies, so it is
+ * probed by deflating a small sample at the fastest level.  Noisy 16 bit data typically only shrinks by 10-20%,
+ * which isn't worth the decompression cost on every retrieve.
+ * <p>
+ * Policies are immutable, so one can be shared by every thread.
+ */
+public class CompressionPolicy {
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    public static final double DEFAULT_MAX_RATIO = 0.8;
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(DEFAULT_MIN_SIZE, DEFAULT_MAX_RATIO);
+
+    // The number and size of the chunks sampled from binary data, spread through the data
+    static final int SAMPLE_CHUNKS = 3;
+    static final int SAMPLE_CHUNK_SIZE = 4096;
+
+    private final long minSize;
+    private final double maxRatio;
+
+    /**
+     * @param minSize is the smallest output which is compressed
+     * @param maxRatio is the largest compressed/original size ratio of a binary sample to compress the output
+     */
+    public CompressionPolicy(long minSize, double maxRatio) {
+        this.minSize = minSize;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Returns true if the output should be compressed.
+     * @param contentType of the output content
+     * @param length of the content, or -1 if unknown
+     * @param sample of binary content, or null if it isn't available, see sample
+     */
+    public boolean shouldCompress(String contentType, long length, byte[] sample) {
+        if( contentType!=null && (contentType.startsWith("image/") || contentType.startsWith("video/")) ) {
+            return false;
+        }
+        if( length>=0 && length<minSize ) return false;
+        if( !BulkDataAccess.OCTET_STREAM.equals(contentType) || sample==null || sample.length==0 ) return true;
+        return ratio(sample) <= maxRatio;
+    }
+
+    /** Returns the chunks to sample from content of the given length, as start offsets */
+    public static long[] sampleOffsets(long length) {
+        if( length<=SAMPLE_CHUNKS * SAMPLE_CHUNK_SIZE ) return new long[]{0};
+        long[] ret = new long[SAMPLE_CHUNKS];
+        for(int i=0; i<SAMPLE_CHUNKS; i++) {
+            // Start, and evenly through the rest, as the edges of images are often empty
+            ret[i] = (length - SAMPLE_CHUNK_SIZE) * i / (SAMPLE_CHUNKS - 1);
+        }
+        return ret;
+    }
+
+    /** Returns the compressed/original size ratio of sample at the fastest compression level */
+    static double ratio(byte[] sample) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] buffer = new byte[sample.length + 64];
+            long compressed = 0;
+            while( !deflater.finished() ) {
+                compressed += deflater.deflate(buffer);
+            }
+            return compressed / (double) sample.length;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.dcm4che.staticwado;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.decoder.BrotliInputStream;
+import com.aayushatharva.brotli4j.encoder.BrotliOutputStream;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+
+/** The pre-compressed encodings files can be written with, named by their HTTP Content-Encoding and file suffix */
+public enum ContentEncoding {
+    GZIP("gzip", ".gz") {
+        @Override
+        public OutputStream wrap(OutputStream os) throws IOException {
+            return new ParallelGZIPOutputStream(os);
+        }
+
+        @Override
+        public InputStream unwrap(InputStream is) throws IOException {
+            return new GZIPInputStream(is);
+        }
+    },
+    BROTLI("br", ".br") {
+        @Override
+        public OutputStream wrap(OutputStream os) throws IOException {
+            Brotli4jLoader.ensureAvailability();
+            return new BrotliOutputStream(os, new Encoder.Parameters().setQuality(BROTLI_QUALITY));
+        }
+
+        @Override
+        public InputStream unwrap(InputStream is) throws IOException {
+            Brotli4jLoader.ensureAvailability();
+            return new BrotliInputStream(is);
+        }
+    },
+    ZSTD("zstd", ".zst") {
+        @Override
+        public OutputStream wrap(OutputStream os) throws IOException {
+            return new ZstdOutputStream(os, ZSTD_LEVEL);
+        }
+
+        @Override
+        public InputStream unwrap(InputStream is) throws IOException {
+            return new ZstdInputStream(is);
+        }
+    };
+
+    // Levels which give most of the size benefit for repetitive JSON, without the very slow top levels
+    static final int BROTLI_QUALITY = 9;
+    static final int ZSTD_LEVEL = 9;
+
+    private final String name;
+    private final String suffix;
+
+    ContentEncoding(String name, String suffix) {
+        this.name = name;
+        this.suffix = suffix;
+    }
+
+    /** Returns a stream compressing to os */
+    public abstract OutputStream wrap(OutputStream os) throws IOException;
+
+    /** Returns a stream decompressing is */
+    public abstract InputStream unwrap(InputStream is) throws IOException;
+
+    /** The HTTP Content-Encoding value */
+    public String getName() {
+        return name;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    /** Returns the encoding with the given Content-Encoding name, also accepting brotli for br */
+    public static ContentEncoding forName(String name) {
+        for(ContentEncoding encoding : values()) {
+            if( encoding.name.equalsIgnoreCase(name) ) return encoding;
+        }
+        if( "brotli".equalsIgnoreCase(name) ) return BROTLI;
+        throw new IllegalArgumentException("Unknown content encoding " + name);
+    }
+
+    /** Returns the encoding of a file from its suffix, or null for an unencoded file */
+    public static ContentEncoding forFile(File file) {
+        String fileName = file.getName();
+        for(ContentEncoding encoding : values()) {
+            if( fileName.endsWith(encoding.suffix) ) return encoding;
+        }
+        return null;
+    }
+}
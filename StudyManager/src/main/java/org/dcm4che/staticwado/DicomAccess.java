@@ -46,10 +46,23 @@ public class DicomAccess {
     }
 
     public static Attributes readFile(String path, File bulkFile) throws IOException {
+        return readFile(path, bulkFile, false);
+    }
+
+    /**
+     * Reads the DICOM file at path, with the bulkdata as BulkData references.
+     * When inPlace is set, the bulkdata references the source file by offset and length instead of being copied
+     * into bulkFile.  Bulkdata which can't be referenced in place, such as deflated data, is still spooled to bulkFile.
+     */
+    public static Attributes readFile(String path, File bulkFile, boolean inPlace) throws IOException {
         bulkFile.mkdirs();
-        try(DicomInputStream dis = new DicomInputStream(new File(path))) {
+        File file = new File(path);
+        try(DicomInputStream dis = new DicomInputStream(file)) {
             dis.setIncludeBulkData(DicomInputStream.IncludeBulkData.URI);
             dis.setBulkDataDirectory(bulkFile);
+            if( inPlace ) {
+                dis.setURI(file.toURI().toString());
+            }
             dis.setBulkDataFileSuffix(".raw");
 
             dis.setBulkDataDescriptor(DicomAccess::descriptor);
@@ -61,6 +74,15 @@ public class DicomAccess {
         }
     }
 
+    /** Reads just enough of the header of path to get the study instance UID, without any bulkdata */
+    public static Attributes readStudyHeader(File file) throws IOException {
+        try(DicomInputStream dis = new DicomInputStream(file)) {
+            dis.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+            // Stop once the study instance UID has been read
+            return dis.readDataset(-1, Tag.StudyInstanceUID+1);
+        }
+    }
+
     /** Returns a SHA1 sum of the attributes instances */
     public static String hashAttributes(Attributes testAttr) {
         try(HashOutputStream hos = new HashOutputStream(); DicomOutputStream dos = new DicomOutputStream(hos,UID.ImplicitVRLittleEndian)) {
@@ -0,0 +1,115 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.DicomStreamException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+/** Scans input files for DICOM, parsing the headers on a pool of worker threads.
+ * The files are walked on a background thread and parsed concurrently, but the parsed instances are handed
+ * back in walk order through a bounded queue, so the output is the same as for a single threaded scan.
+ */
+public class DicomScanner {
+    private static final Logger log = LoggerFactory.getLogger(DicomScanner.class);
+
+    /** Reads the attributes of a single file */
+    public interface Reader {
+        Attributes read(File file) throws IOException;
+    }
+
+    private static final ScannedFile END = new ScannedFile(null, null);
+
+    private final int threads;
+    private final int queueSize;
+
+    public DicomScanner(int threads) {
+        this.threads = Math.max(1, threads);
+        // Enough outstanding reads to keep all the workers busy while the handler is behind.
+        this.queueSize = this.threads * 4;
+    }
+
+    /**
+     * Reads all the given files with reader, calling handler with the parsed attributes on the calling thread,
+     * in the same order as the files are returned.  Non-DICOM files are skipped.  An error walking the files is
+     * thrown once the files found before it have been handled.
+     */
+    public void scan(Iterator<File> files, Reader reader, BiConsumer<File, Attributes> handler) {
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("DicomScanner-parse"));
+        BlockingQueue<ScannedFile> queue = new ArrayBlockingQueue<>(queueSize);
+        AtomicReference<RuntimeException> walkError = new AtomicReference<>();
+        Thread walker = new Thread(() -> {
+            try {
+                try {
+                    while (files.hasNext()) {
+                        File file = files.next();
+                        queue.put(new ScannedFile(file, parsers.submit(() -> reader.read(file))));
+                    }
+                } catch (RuntimeException e) {
+                    walkError.set(e);
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                log.debug("Input walk interrupted");
+            }
+        }, "DicomScanner-walk");
+        walker.setDaemon(true);
+        try {
+            walker.start();
+            for (ScannedFile scanned = queue.take(); scanned != END; scanned = queue.take()) {
+                Attributes attr = scanned.get();
+                if (attr != null) {
+                    handler.accept(scanned.file, attr);
+                }
+            }
+            RuntimeException error = walkError.get();
+            if (error != null) {
+                throw error;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Scan interrupted"));
+        } finally {
+            walker.interrupt();
+            parsers.shutdownNow();
+        }
+    }
+
+    /** A file which is being read, in the order it was found */
+    static class ScannedFile {
+        final File file;
+        final Future<Attributes> attr;
+
+        ScannedFile(File file, Future<Attributes> attr) {
+            this.file = file;
+            this.attr = attr;
+        }
+
+        /** Gets the parsed attributes, or null if the file couldn't be read */
+        Attributes get() throws InterruptedException {
+            try {
+                return attr.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DicomStreamException) {
+                    log.debug("Skipping non-dicom {}", file);
+                } else if (cause instanceof IOException) {
+                    log.warn("Unable to read {}", file, cause);
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new Error(cause);
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.dcm4che.staticwado;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/** Writes the same bytes to several streams, so that each encoding of an output is produced in one pass */
+public class FanOutOutputStream extends OutputStream {
+    private final List<OutputStream> streams;
+
+    public FanOutOutputStream(List<OutputStream> streams) {
+        this.streams = streams;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        for(OutputStream os : streams) {
+            os.write(b);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        for(OutputStream os : streams) {
+            os.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for(OutputStream os : streams) {
+            os.flush();
+        }
+    }
+
+    /** Closes every stream, even if closing an earlier one fails */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for(OutputStream os : streams) {
+            try {
+                os.close();
+            } catch(IOException e) {
+                if( error==null ) error = e;
+                else error.addSuppressed(e);
+            }
+        }
+        if( error!=null ) throw error;
+    }
+}
@@ -1,77 +1,205 @@
 package org.dcm4che.staticwado;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.*;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.zip.GZIPOutputStream;
+import java.util.*;
 
 /** The file handler knows about how to write to a given DICOMweb location tree.
- * It is designed to allow other output mechanisms to be used in place of the straight file operations
+ * The actual storage is done by a StorageBackend, so that other output mechanisms such as object stores can be used
+ * in place of the straight file operations.  A file handler is immutable, so it can be shared between threads.
  */
 public class FileHandler {
+    private static final Logger log = LoggerFactory.getLogger(FileHandler.class);
+
+    private static volatile Set<ContentEncoding> defaultEncodings = EnumSet.of(ContentEncoding.GZIP);
 
-    private final File exportDir;
-    private final File studyDir;
-    private boolean gzip = true;
+    private final StorageBackend storage;
+    /** The path prefix of the handler in the storage, either empty or ending in / */
+    private final String prefix;
+    private final Set<ContentEncoding> encodings;
 
     public FileHandler(File exportDir, String studyUID) {
-        this.exportDir = exportDir;
-        this.studyDir = new File(exportDir,studyUID);
+        this(new FileStorage(new File(exportDir, studyUID)), "");
     }
     
     public FileHandler(File exportDir) {
-        this.exportDir = exportDir;
-        this.studyDir = exportDir;
+        this(new FileStorage(exportDir), "");
     }
 
-    public void mkdirs(String dest) {
-        if( dest.contains("/") ) {
-            File destDir = new File(studyDir,dest).getParentFile();
-            destDir.mkdirs();
-        } else {
-            studyDir.mkdirs();
-        }
+    /** Creates a handler for the given directory path in storage */
+    public FileHandler(StorageBackend storage, String path) {
+        this(storage, path, storage.getEncodings(defaultEncodings));
+    }
+
+    private FileHandler(StorageBackend storage, String path, Set<ContentEncoding> encodings) {
+        this.storage = storage;
+        this.prefix = path.isEmpty() || path.endsWith("/") ? path : (path + "/");
+        this.encodings = encodings;
+    }
+
+    /**
+     * Returns a handler for the local directory dir, writing the same encodings as this handler, so that the files
+     * it writes can be moved into this handler with moveIfAbsent.
+     */
+    public FileHandler forStaging(File dir) {
+        return new FileHandler(new FileStorage(dir), "", encodings);
+    }
+
+    /** Returns a handler for the sub-directory name, eg a study directory under the studies handler */
+    public FileHandler forSubDir(String name) {
+        return new FileHandler(storage, prefix + name);
+    }
+
+    public StorageBackend getStorage() {
+        return storage;
     }
 
+    /**
+     * Sets the encodings that compressed outputs are written in, by file handlers created afterwards.
+     * Gzip is always written, as it is the encoding read back and served by default.
+     */
+    public static void setDefaultEncodings(Collection<ContentEncoding> encodings) {
+        Set<ContentEncoding> set = EnumSet.of(ContentEncoding.GZIP);
+        set.addAll(encodings);
+        defaultEncodings = Collections.unmodifiableSet(set);
+    }
+
+    /** Opens dest for writing compressed, as used for JSON */
     public OutputStream openForWrite(String dest) throws IOException {
-        mkdirs(dest);
-        if( gzip ) {
-            return new GZIPOutputStream(new FileOutputStream(new File(studyDir,dest+".gz")));
-        } else {
-            return new FileOutputStream(new File(studyDir,dest));
+        return openForWrite(dest, true);
+    }
+
+    /**
+     * Opens dest for writing.  Compressed outputs are written in each encoding, all in one pass.
+     * @param compress is true to compress the output, typically as decided by a CompressionPolicy
+     */
+    public OutputStream openForWrite(String dest, boolean compress) throws IOException {
+        if( !compress ) {
+            return storage.openForWrite(prefix + dest, null);
+        }
+        if( encodings.size()==1 ) {
+            return open(dest, encodings.iterator().next());
+        }
+        List<OutputStream> streams = new ArrayList<>(encodings.size());
+        try {
+            for(ContentEncoding encoding : encodings) {
+                streams.add(open(dest, encoding));
+            }
+        } catch(IOException | RuntimeException e) {
+            new FanOutOutputStream(streams).close();
+            throw e;
+        }
+        return new FanOutOutputStream(streams);
+    }
+
+    private OutputStream open(String dest, ContentEncoding encoding) throws IOException {
+        OutputStream os = storage.openForWrite(prefix + dest, encoding);
+        try {
+            return encoding.wrap(os);
+        } catch(IOException | RuntimeException e) {
+            os.close();
+            throw e;
         }
     }
 
-    public void setGzip(boolean b) {
-        gzip = b;
+    /** Opens the compressed dest for reading, decompressed, or returns null if it doesn't exist */
+    public InputStream openForRead(String dest) throws IOException {
+        ContentEncoding encoding = encodings.iterator().next();
+        InputStream is = storage.openForRead(prefix + dest, encoding);
+        return is==null ? null : encoding.unwrap(is);
     }
 
-    public File getStudyDir() {
-        return studyDir;
+    /** Returns true if the compressed dest exists */
+    public boolean exists(String dest) throws IOException {
+        return storage.exists(prefix + dest, encodings.iterator().next());
     }
 
-    /** Generates a hash of a given path, generation levels sub-directories for it */
-    public String hashOf(File file, long offset, long length) {
-        try (InputStream is = new FileInputStream(file)){
-            is.skip(offset);
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            digest.reset();
-            byte[] data = new byte[16384];
-            long cumulativeLength = 0;
-            int len = 0;
-            while(len!=-1 && cumulativeLength < length) {
-                digest.update(data,0,len);
-                int readLen = (int) Math.min(length-cumulativeLength, data.length);
-                len = is.read(data,0,readLen);
+    /** Returns the encodings dest is written in, which is just null for uncompressed outputs */
+    private List<ContentEncoding> encodingsFor(boolean compressed) {
+        return compressed ? new ArrayList<>(encodings) : Collections.singletonList(null);
+    }
+
+    /**
+     * Moves src from the local staging handler, see forStaging, to dest in this handler, unless dest already exists,
+     * in which case src is just deleted.  Each encoding is stored in one pass, without a temporary object in storage.
+     * @param compressed is true if src was written compressed
+     * @return true if dest was created by this call
+     */
+    public boolean moveIfAbsent(FileHandler staging, String src, String dest, boolean compressed) throws IOException {
+        FileStorage from = (FileStorage) staging.storage;
+        List<ContentEncoding> srcEncodings = encodingsFor(compressed);
+        if( storage.exists(prefix + dest, srcEncodings.get(0)) ) {
+            log.debug("Already have {}, dropping {}", dest, src);
+            staging.delete(src);
+            return false;
+        }
+        // Store the primary encoding last, as its presence marks dest as complete
+        for(int i=srcEncodings.size()-1; i>=0; i--) {
+            storage.putFile(from.fileFor(staging.prefix + src, srcEncodings.get(i)), prefix + dest, srcEncodings.get(i));
+        }
+        return true;
+    }
+
+    /** Deletes dest, relative to this handler, whether it was written compressed or not */
+    public void delete(String dest) {
+        List<ContentEncoding> all = encodingsFor(true);
+        all.add(null);
+        for(ContentEncoding encoding : all) {
+            try {
+                storage.delete(prefix + dest, encoding);
+            } catch(IOException e) {
+                log.warn("Unable to delete {}{}", prefix, dest, e);
             }
-            String sha1 = new BigInteger(1, digest.digest()).toString(32);
-            return sha1.substring(0,2)+"/"+sha1.substring(2);
+        }
+    }
+
+    /** Returns a description of where this handler writes to, for logging */
+    public String getStudyDir() {
+        if( storage instanceof FileStorage ) return new File(((FileStorage) storage).getRootDir(), prefix).getPath();
+        return storage + "/" + prefix;
+    }
+
+    /** Deletes file, and everything under it if it is a directory */
+    public static void deleteRecursively(File file) {
+        File[] subFiles = file.listFiles();
+        if( subFiles!=null ) {
+            for(File subFile : subFiles) {
+                deleteRecursively(subFile);
+            }
+        }
+        if( file.exists() && !file.delete() ) {
+            log.warn("Unable to delete {}", file);
+        }
+    }
+
+    /** Creates the digest used for hash names */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
         } catch(NoSuchAlgorithmException e) {
             throw new Error(e);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return file.getName();
         }
     }
+
+    /** Returns the hash name for the digested data, with a sub-directory level for the start of the hash */
+    public static String hashPath(MessageDigest digest) {
+        return hashPath(digest, 1);
+    }
+
+    /** Returns the hash name for the digested data, with levels of two character sub-directories, eg HASH1/HASH2/HASH3 */
+    public static String hashPath(MessageDigest digest, int levels) {
+        String sha1 = new BigInteger(1, digest.digest()).toString(32);
+        StringBuilder ret = new StringBuilder();
+        for(int i=0; i<levels; i++) {
+            ret.append(sha1, 2*i, 2*i+2).append('/');
+        }
+        return ret.append(sha1.substring(2*levels)).toString();
+    }
 }
@@ -0,0 +1,62 @@
+package org.dcm4che.staticwado;
+
+import java.io.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/** Stores the DICOMweb tree in a local directory, with the encoding as a file suffix, eg metadata.gz */
+public class FileStorage implements StorageBackend {
+    private final File rootDir;
+
+    public FileStorage(File rootDir) {
+        this.rootDir = rootDir;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /** Returns the file that path is stored in */
+    public File fileFor(String path, ContentEncoding encoding) {
+        return new File(rootDir, encoding==null ? path : path + encoding.getSuffix());
+    }
+
+    @Override
+    public OutputStream openForWrite(String path, ContentEncoding encoding) throws IOException {
+        File file = fileFor(path, encoding);
+        file.getParentFile().mkdirs();
+        return new FileOutputStream(file);
+    }
+
+    @Override
+    public InputStream openForRead(String path, ContentEncoding encoding) throws IOException {
+        File file = fileFor(path, encoding);
+        return file.exists() ? new FileInputStream(file) : null;
+    }
+
+    @Override
+    public boolean exists(String path, ContentEncoding encoding) {
+        return fileFor(path, encoding).exists();
+    }
+
+    /** Renames src into place, copying it next to dest first when it is on another file system */
+    @Override
+    public void putFile(File src, String path, ContentEncoding encoding) throws IOException {
+        File destFile = fileFor(path, encoding);
+        destFile.getParentFile().mkdirs();
+        try {
+            Files.move(src.toPath(), destFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(AtomicMoveNotSupportedException e) {
+            File copy = new File(destFile.getParentFile(), destFile.getName() + ".tmp");
+            Files.copy(src.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(copy.toPath(), destFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(src.toPath());
+        }
+    }
+
+    @Override
+    public void delete(String path, ContentEncoding encoding) throws IOException {
+        Files.deleteIfExists(fileFor(path, encoding).toPath());
+    }
+}
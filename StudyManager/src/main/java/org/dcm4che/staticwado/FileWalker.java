@@ -0,0 +1,55 @@
+package org.dcm4che.staticwado;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** Walks a set of files and directories recursively, returning the files in the same depth first order
+ * as the listFiles recursion does.  Directories are only listed as they are reached.
+ */
+public class FileWalker implements Iterator<File> {
+    private static final Logger log = LoggerFactory.getLogger(FileWalker.class);
+
+    private final Deque<File> pending = new ArrayDeque<>();
+    private File next;
+
+    public FileWalker(String... names) {
+        for(int i=names.length-1; i>=0; i--) {
+            pending.push(new File(names[i]));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        while( next==null && !pending.isEmpty() ) {
+            File file = pending.pop();
+            if( file.isDirectory() ) {
+                log.debug("Directory {} being recursed into", file);
+                File[] subFiles = file.listFiles();
+                if( subFiles==null ) {
+                    log.warn("Unable to list directory {}", file);
+                    continue;
+                }
+                for(int i=subFiles.length-1; i>=0; i--) {
+                    pending.push(subFiles[i]);
+                }
+            } else {
+                next = file;
+            }
+        }
+        return next!=null;
+    }
+
+    @Override
+    public File next() {
+        if( !hasNext() ) throw new NoSuchElementException();
+        File ret = next;
+        next = null;
+        return ret;
+    }
+}
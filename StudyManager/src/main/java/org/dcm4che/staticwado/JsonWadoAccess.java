@@ -4,6 +4,7 @@ import org.dcm4che3.data.Attributes;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -17,10 +18,16 @@ import org.slf4j.LoggerFactory;
 import javax.json.Json;
 import javax.json.JsonValue;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import javax.json.stream.JsonParser;
 
 public class JsonWadoAccess {
     private static final Logger log = LoggerFactory.getLogger(JsonWadoAccess.class);
+
+    // The generator factories are thread safe, and expensive to create, so share them
+    private static final JsonGeneratorFactory COMPACT_FACTORY = Json.createGeneratorFactory(Collections.emptyMap());
+    private static final JsonGeneratorFactory PRETTY_FACTORY = Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, null));
+
     private final FileHandler handler;
 
     private boolean encodeAsNumber = true;
@@ -31,11 +38,7 @@ public class JsonWadoAccess {
     }
 
     public JsonGenerator createGenerator(OutputStream out) {
-        Map<String, ?> conf = new HashMap<String, Object>(2);
-        if( pretty ) {
-            conf.put(JsonGenerator.PRETTY_PRINTING, null);
-        }
-        return Json.createGeneratorFactory(conf).createGenerator(out);
+        return (pretty ? PRETTY_FACTORY : COMPACT_FACTORY).createGenerator(out);
     }
 
     public JSONWriter createWriter(JsonGenerator generator) {
@@ -55,32 +58,91 @@ public class JsonWadoAccess {
      * @param attributes is an array of objects to write to the given location
      */
     public void writeJson(String dest, Attributes... attributes) {
-        try(OutputStream fos = handler.openForWrite(dest); JsonGenerator generator = createGenerator(fos)) {
-            generator.writeStartArray();
-            for(Attributes attr : attributes) {
-                JSONWriter writer = createWriter(generator);
-                writer.write(attr);
-                generator.flush();
-                fos.write('\n');
+        writeJson(dest, Arrays.asList(attributes).iterator());
+    }
+
+    public void writeJson(String dest, Iterable<Attributes> attributes) {
+        writeJson(dest, attributes.iterator());
+    }
+
+    public void writeJson(String dest, Stream<Attributes> attributes) {
+        writeJson(dest, attributes.iterator());
+    }
+
+    /**
+     * Writes JSON representation of the given attributes to the destination file, one at a time as they are
+     * read from the iterator, so they don't all need to be in memory.
+     */
+    public void writeJson(String dest, Iterator<Attributes> attributes) {
+        try(ArrayWriter writer = openArray(dest)) {
+            while(attributes.hasNext()) {
+                writer.write(attributes.next());
             }
-            generator.writeEnd();
         } catch(IOException e) {
-            log.warn("Unable to write file {}", dest, e);
+            throw new UncheckedIOException("Unable to write file " + dest, e);
         }
         log.debug("Wrote to {} / {}", handler.getStudyDir(), dest);
     }
 
+    /** Opens dest to write a JSON array to, one item at a time */
+    public ArrayWriter openArray(String dest) throws IOException {
+        return new ArrayWriter(handler.openForWrite(dest));
+    }
+
+    /** Writes a JSON array of attributes directly to a stream, pushing one item at a time.  Items may be written
+     * from multiple threads. */
+    public class ArrayWriter implements Closeable {
+        private final OutputStream os;
+        private final JsonGenerator generator;
+        private final JSONWriter writer;
+
+        ArrayWriter(OutputStream os) {
+            this.os = os;
+            this.generator = createGenerator(os);
+            this.writer = createWriter(generator);
+            generator.writeStartArray();
+        }
+
+        public synchronized void write(Attributes attr) throws IOException {
+            writer.write(attr);
+            generator.flush();
+            os.write('\n');
+        }
+
+        /** Ends the array and closes the underlying stream */
+        @Override
+        public void close() {
+            generator.writeEnd();
+            generator.close();
+        }
+    }
+
     public static List<Attributes> read(File location) throws IOException {
-        List<Attributes> ret = new ArrayList<>();
         try(InputStream is = new FileInputStream(location); GZIPInputStream gzip = new GZIPInputStream(is)) {
-            JsonParser parser = Json.createParser(gzip);
-            new JSONReader(parser).readDatasets((fmi,attr) -> {
-                ret.add(attr);
-            });
+            return read(gzip);
         } catch(FileNotFoundException e) {
             log.warn("Studies list not found, starting fresh");
             return Collections.emptyList();
         }
+    }
+
+    /** Reads the compressed JSON dest from the handler's storage, returning an empty list if it doesn't exist */
+    public List<Attributes> read(String dest) throws IOException {
+        try(InputStream is = handler.openForRead(dest)) {
+            if( is==null ) {
+                log.warn("{} not found, starting fresh", dest);
+                return Collections.emptyList();
+            }
+            return read(is);
+        }
+    }
+
+    static List<Attributes> read(InputStream is) {
+        List<Attributes> ret = new ArrayList<>();
+        JsonParser parser = Json.createParser(is);
+        new JSONReader(parser).readDatasets((fmi,attr) -> {
+            ret.add(attr);
+        });
         return ret;
     }
 
@@ -0,0 +1,82 @@
+package org.dcm4che.staticwado;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** A read only memory mapping of a region of a source file, shared by all the frames of an instance
+ * so that splitting a large multi-frame object into frames is a sequential read of the page cache.
+ */
+public class MappedRegion {
+    static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long offset;
+    private final MappedByteBuffer buffer;
+
+    private MappedRegion(File file, long offset, MappedByteBuffer buffer) {
+        this.file = file;
+        this.offset = offset;
+        this.buffer = buffer;
+    }
+
+    /** Maps length bytes of file starting at offset, or returns null if the region is too large to map.
+     * The mapping is released by the garbage collector once it is no longer referenced. */
+    public static MappedRegion map(File file, long offset, long length) throws IOException {
+        if (length <= 0 || length > Integer.MAX_VALUE) return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long available = Math.min(length, channel.size() - offset);
+            if (available <= 0) return null;
+            // The mapping stays valid after the channel is closed
+            return new MappedRegion(file, offset, channel.map(FileChannel.MapMode.READ_ONLY, offset, available));
+        }
+    }
+
+    /** Returns true if the given range of file is inside this mapping */
+    public boolean contains(File testFile, long start, long length) {
+        return file.equals(testFile) && start >= offset && start + length <= offset + buffer.capacity();
+    }
+
+    /** Copies length bytes starting at the file position start to os.  Safe to call from multiple threads. */
+    public long copyTo(long start, long length, OutputStream os) throws IOException {
+        ByteBuffer region = buffer.duplicate();
+        region.position((int) (start - offset));
+        region.limit((int) (start - offset + length));
+        return write(region, os);
+    }
+
+    /** Returns the chunks of the given range chosen by CompressionPolicy.sampleOffsets, read from the mapping */
+    public byte[] sample(long start, long length) {
+        ByteBuffer region = buffer.duplicate();
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for(long offset : CompressionPolicy.sampleOffsets(length)) {
+            int len = (int) Math.min(CompressionPolicy.SAMPLE_CHUNK_SIZE, length - offset);
+            byte[] chunk = new byte[len];
+            region.position((int) (start - this.offset + offset));
+            region.get(chunk);
+            sample.write(chunk, 0, len);
+        }
+        return sample.toByteArray();
+    }
+
+    /** Writes the remaining contents of buffer to os, directly to the channel for file outputs */
+    static long write(ByteBuffer buffer, OutputStream os) throws IOException {
+        long written = buffer.remaining();
+        if (os instanceof FileOutputStream) {
+            FileChannel out = ((FileOutputStream) os).getChannel();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            return written;
+        }
+        byte[] chunk = new byte[(int) Math.min(COPY_BUFFER_SIZE, written)];
+        while (buffer.hasRemaining()) {
+            int len = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, len);
+            os.write(chunk, 0, len);
+        }
+        return written;
+    }
+}
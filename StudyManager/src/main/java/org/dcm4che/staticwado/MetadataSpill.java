@@ -0,0 +1,100 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.json.JSONReader;
+import org.dcm4che3.json.JSONWriter;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The full metadata of instances, written to a temporary file as the instances arrive and streamed back when the
+ * study is written.  Each record is the length of the JSON for one instance, followed by the JSON, which preserves
+ * the bulkdata URIs.
+ */
+public class MetadataSpill implements Iterable<Attributes>, Closeable {
+    private final File file;
+    private DataOutputStream out;
+    private int count;
+
+    public MetadataSpill(File file) {
+        this.file = file;
+    }
+
+    public synchronized void append(Attributes attr) throws IOException {
+        if( out==null ) {
+            file.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try(JsonGenerator generator = Json.createGenerator(bos)) {
+            new JSONWriter(generator).write(attr);
+        }
+        out.writeInt(bos.size());
+        bos.writeTo(out);
+        count++;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /** Reads back the instances appended so far, in order.  The file is closed once the last one has been read. */
+    @Override
+    public synchronized Iterator<Attributes> iterator() {
+        if( count==0 ) return Collections.emptyIterator();
+        try {
+            out.flush();
+            return new RecordIterator(new DataInputStream(new BufferedInputStream(new FileInputStream(file))), count);
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to read metadata from " + file, e);
+        }
+    }
+
+    /** Closes and deletes the file */
+    @Override
+    public synchronized void close() throws IOException {
+        if( out!=null ) out.close();
+        out = null;
+        count = 0;
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private class RecordIterator implements Iterator<Attributes> {
+        private final DataInputStream in;
+        private int remaining;
+
+        RecordIterator(DataInputStream in, int remaining) {
+            this.in = in;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining>0;
+        }
+
+        @Override
+        public Attributes next() {
+            if( remaining<=0 ) throw new NoSuchElementException();
+            try {
+                byte[] json = new byte[in.readInt()];
+                in.readFully(json);
+                if( --remaining==0 ) in.close();
+                return new JSONReader(Json.createParser(new ByteArrayInputStream(json))).readDataset(null);
+            } catch(IOException e) {
+                try {
+                    in.close();
+                } catch(IOException ignored) {
+                    // Already failing
+                }
+                throw new UncheckedIOException("Unable to read metadata from " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.dcm4che.staticwado;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip output stream which compresses large outputs in parallel, in the same way as pigz.  The input is split into
+ * blocks, each compressed independently as raw deflate data primed with the last 32k of the previous block, and ended
+ * with a sync flush so the blocks can simply be concatenated.  The result is a single standard gzip member.
+ * <p>
+ * Until threshold bytes have been written, the output is compressed in-line by a single deflater as a plain gzip
+ * stream, so small outputs neither allocate blocks nor pay for the hand off to the compression threads.  Once past
+ * the threshold the in-line stream is sync flushed and the rest is compressed in blocks, the first without a
+ * dictionary.
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    public static final long DEFAULT_THRESHOLD = 1024 * 1024;
+
+    // The deflate window size, which is the most of the previous block that can be referenced
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    private static int defaultBlockSize = DEFAULT_BLOCK_SIZE;
+    private static int defaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private static long defaultThreshold = DEFAULT_THRESHOLD;
+    private static ExecutorService defaultPool = createPool(Runtime.getRuntime().availableProcessors());
+
+    private final Executor pool;
+    private final int blockSize;
+    private final int level;
+    private final long threshold;
+    private final int maxPending;
+    private final CRC32 crc = new CRC32();
+    private final ArrayDeque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    /** Compresses the output in-line until the threshold is reached, and is null once it is compressed in blocks */
+    private Deflater inline;
+    private final byte[] buffer = new byte[8 * 1024];
+    private byte[] block;
+    private int blockLength;
+    private byte[] previous;
+    private long total;
+    private boolean closed;
+
+    /** Creates a stream with the settings from configure */
+    public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+        this(out, getDefaultPool(), defaultBlockSize, defaultLevel, defaultThreshold);
+    }
+
+    /**
+     * @param pool to compress blocks on, or null to always compress in-line
+     * @param threshold is the number of bytes to write before compressing on the pool
+     */
+    public ParallelGZIPOutputStream(OutputStream out, Executor pool, int blockSize, int level, long threshold) throws IOException {
+        super(out);
+        if( blockSize<DICTIONARY_SIZE ) throw new IllegalArgumentException("Block size must be at least " + DICTIONARY_SIZE);
+        this.pool = pool;
+        this.blockSize = blockSize;
+        this.level = level;
+        this.threshold = threshold;
+        this.maxPending = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+        this.inline = new Deflater(level, true);
+        out.write(HEADER);
+    }
+
+    /**
+     * Sets the defaults used by FileHandler for gzip outputs.
+     * @param threads is the number of compression threads, 1 to always compress in-line
+     */
+    public static synchronized void configure(int blockSize, int level, int threads, long threshold) {
+        defaultBlockSize = blockSize;
+        defaultLevel = level;
+        defaultThreshold = threshold;
+        if( defaultPool!=null ) defaultPool.shutdown();
+        defaultPool = createPool(threads);
+    }
+
+    private static synchronized Executor getDefaultPool() {
+        return defaultPool;
+    }
+
+    private static ExecutorService createPool(int threads) {
+        return threads>1 ? Executors.newFixedThreadPool(threads, new NamedThreadFactory("Gzip")) : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if( closed ) throw new IOException("Stream closed");
+        crc.update(b, off, len);
+        if( inline!=null ) {
+            if( pool==null || total+len<threshold ) {
+                deflateInline(b, off, len);
+                total += len;
+                return;
+            }
+            int inlineLength = (int) Math.max(0, threshold-total);
+            deflateInline(b, off, inlineLength);
+            off += inlineLength;
+            len -= inlineLength;
+            total += inlineLength;
+            startBlocks();
+        }
+        total += len;
+        while( len>0 ) {
+            int copy = Math.min(len, blockSize-blockLength);
+            System.arraycopy(b, off, block, blockLength, copy);
+            blockLength += copy;
+            off += copy;
+            len -= copy;
+            if( blockLength==blockSize ) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /** Flushes the completed blocks.  This doesn't end the current block, so frequent flushes don't hurt compression. */
+    @Override
+    public void flush() throws IOException {
+        while( !pending.isEmpty() && pending.peekFirst().isDone() ) {
+            writeNext();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if( closed ) return;
+        try {
+            if( inline!=null ) {
+                inline.finish();
+                while( !inline.finished() ) {
+                    out.write(buffer, 0, inline.deflate(buffer));
+                }
+            } else {
+                submitBlock(true);
+            }
+            while( !pending.isEmpty() ) {
+                writeNext();
+            }
+            byte[] trailer = new byte[8];
+            putInt(trailer, 0, (int) crc.getValue());
+            putInt(trailer, 4, (int) total);
+            out.write(trailer);
+        } finally {
+            closed = true;
+            if( inline!=null ) inline.end();
+            out.close();
+        }
+    }
+
+    private void deflateInline(byte[] b, int off, int len) throws IOException {
+        if( len==0 ) return;
+        inline.setInput(b, off, len);
+        while( !inline.needsInput() ) {
+            out.write(buffer, 0, inline.deflate(buffer));
+        }
+    }
+
+    /** Ends the in-line stream at a byte boundary, so that the blocks compressed on the pool can follow it */
+    private void startBlocks() throws IOException {
+        int len;
+        do {
+            len = inline.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+            out.write(buffer, 0, len);
+        } while( len==buffer.length );
+        inline.end();
+        inline = null;
+        block = new byte[blockSize];
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        byte[] data = block;
+        int length = blockLength;
+        byte[] dictionary = previous;
+        pending.addLast(CompletableFuture.supplyAsync(() -> deflate(data, length, dictionary, level, last), pool));
+        previous = data;
+        block = new byte[blockSize];
+        blockLength = 0;
+        while( pending.size()>maxPending || (!pending.isEmpty() && pending.peekFirst().isDone()) ) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().join());
+        } catch(CompletionException e) {
+            throw new IOException("Unable to compress block", e.getCause());
+        }
+    }
+
+    /** Compresses one block as raw deflate data, ending at a byte boundary unless it is the last block */
+    static byte[] deflate(byte[] data, int length, byte[] dictionary, int level, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if( dictionary!=null ) {
+                deflater.setDictionary(dictionary, dictionary.length-DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(data, 0, length);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(length/2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            if( last ) {
+                deflater.finish();
+                while( !deflater.finished() ) {
+                    bos.write(buffer, 0, deflater.deflate(buffer));
+                }
+            } else {
+                int len;
+                do {
+                    len = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    bos.write(buffer, 0, len);
+                } while( len==buffer.length );
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static void putInt(byte[] dest, int offset, int value) {
+        dest[offset] = (byte) value;
+        dest[offset+1] = (byte) (value >> 8);
+        dest[offset+2] = (byte) (value >> 16);
+        dest[offset+3] = (byte) (value >> 24);
+    }
+}
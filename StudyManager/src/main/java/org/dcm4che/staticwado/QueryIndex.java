@@ -0,0 +1,379 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.util.TagUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Writes precomputed study level QIDO-RS search indexes, so a static deployment can answer common searches by
+ * fetching one or two small pages instead of the full studies list.  For each key there is a directory
+ * qido/KEY/ holding the study query results sorted by that key, split into numbered pages of about pageSize studies,
+ * and an index manifest listing the name, first and last key of each page in key order.  A client reads the manifest,
+ * then fetches the pages whose key range covers the search:
+ * <ul>
+ *     <li>PatientID and AccessionNumber for exact matches</li>
+ *     <li>PatientName, upper cased, for prefix matches such as DOE^J*</li>
+ *     <li>StudyDate for date ranges</li>
+ *     <li>ModalitiesInStudy, with a study listed once under each of its modalities</li>
+ * </ul>
+ * Studies with the same key are in StudyDate order, most recent first.  Once written, the indexes are updated by
+ * reading and rewriting only the pages whose key range covers a changed study, splitting pages which grow past twice
+ * the page size, so the cost of an update doesn't grow with the number of studies indexed.
+ */
+public class QueryIndex {
+    private static final Logger log = LoggerFactory.getLogger(QueryIndex.class);
+
+    public static final String QIDO_DIR = "qido";
+    public static final String MANIFEST = "index";
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** The keys which are indexed, each of which is a directory under qido */
+    public enum Key {
+        PatientID(Tag.PatientID),
+        PatientName(Tag.PatientName),
+        StudyDate(Tag.StudyDate),
+        AccessionNumber(Tag.AccessionNumber),
+        ModalitiesInStudy(Tag.ModalitiesInStudy);
+
+        private final int tag;
+
+        Key(int tag) {
+            this.tag = tag;
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        /** Returns the index keys of study, none if it doesn't have the attribute */
+        String[] keysOf(Attributes study) {
+            if( this==ModalitiesInStudy ) {
+                String[] modalities = study.getStrings(tag);
+                return modalities!=null ? modalities : new String[0];
+            }
+            String value = study.getString(tag);
+            if( value==null || value.isEmpty() ) return new String[0];
+            // Names are matched case insensitively
+            return new String[]{this==PatientName ? value.toUpperCase(Locale.ROOT) : value};
+        }
+    }
+
+    private final FileHandler handler;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    /** @param handler is the handler for the qido directory */
+    public QueryIndex(FileHandler handler) {
+        this.handler = handler;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /** Writes the index for every key from the given studies */
+    public void write(Collection<Attributes> studies) throws IOException {
+        List<Attributes> selected = select(studies);
+        for(Key key : Key.values()) {
+            write(key, selected);
+        }
+        log.warn("Wrote query indexes for {} studies", selected.size());
+    }
+
+    /**
+     * Updates the index of every key for the studies added or replaced in a run, rewriting only the pages whose key
+     * range covers one of them.
+     * @param previous are the earlier versions of the replaced studies, so their rows are found under their old keys
+     * @return false, having written nothing, if the index hasn't been written yet and so needs a full write
+     */
+    public boolean update(Collection<Attributes> previous, Collection<Attributes> changed) throws IOException {
+        Map<Key, List<Page>> manifests = new EnumMap<>(Key.class);
+        for(Key key : Key.values()) {
+            List<Page> pages = readManifest(handler.forSubDir(key.name()));
+            if( pages==null ) return false;
+            manifests.put(key, pages);
+        }
+        List<Attributes> selected = select(changed);
+        Set<String> changedUids = new HashSet<>();
+        for(Attributes study : selected) {
+            changedUids.add(study.getString(Tag.StudyInstanceUID));
+        }
+        int rewritten = 0;
+        for(Key key : Key.values()) {
+            rewritten += update(key, manifests.get(key), previous, selected, changedUids);
+        }
+        log.warn("Updated {} query index pages for {} studies", rewritten, selected.size());
+        return true;
+    }
+
+    /** Writes the pages and manifest for one key, removing any pages the new manifest no longer lists */
+    void write(Key key, List<Attributes> studies) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for(Attributes study : studies) {
+            addEntries(key, study, entries);
+        }
+        entries.sort(null);
+        FileHandler keyHandler = handler.forSubDir(key.name());
+        List<Page> old = readManifest(keyHandler);
+        JsonWadoAccess json = new JsonWadoAccess(keyHandler);
+        List<Page> pages = new ArrayList<>();
+        for(int start=0; start<entries.size(); start+=pageSize) {
+            pages.add(writePage(json, String.valueOf(pages.size()),
+                    entries.subList(start, Math.min(entries.size(), start+pageSize))));
+        }
+        // The manifest is written after the pages, so it never refers to a missing page
+        writeManifest(keyHandler, key, pages);
+        deleteUnlisted(keyHandler, old, pages);
+    }
+
+    /**
+     * Rewrites the pages of one key covering the old or new keys of the changed studies, returning the number of
+     * pages written.
+     */
+    int update(Key key, List<Page> pages, Collection<Attributes> previous, List<Attributes> studies, Set<String> changedUids) throws IOException {
+        if( pages.isEmpty() ) pages.add(new Page("0", "", "", 0));
+        // The new rows for each page to rewrite, by its position in the manifest
+        Map<Integer, List<Entry>> changes = new TreeMap<>();
+        for(Attributes study : previous) {
+            for(String value : key.keysOf(study)) {
+                for(int i=0; i<pages.size(); i++) {
+                    if( pages.get(i).covers(value) ) changes.computeIfAbsent(i, k -> new ArrayList<>());
+                }
+            }
+        }
+        for(Attributes study : studies) {
+            List<Entry> entries = new ArrayList<>();
+            addEntries(key, study, entries);
+            for(Entry entry : entries) {
+                // Rows with the same key can span pages, so all the pages covering it are rewritten together
+                int page = pageFor(pages, entry.key);
+                changes.computeIfAbsent(page, k -> new ArrayList<>()).add(entry);
+                for(int i=page-1; i>=0 && pages.get(i).covers(entry.key); i--) {
+                    changes.computeIfAbsent(i, k -> new ArrayList<>());
+                }
+            }
+        }
+        if( changes.isEmpty() ) return 0;
+        FileHandler keyHandler = handler.forSubDir(key.name());
+        JsonWadoAccess json = new JsonWadoAccess(keyHandler);
+        int nextName = 0;
+        for(Page page : pages) {
+            nextName = Math.max(nextName, Integer.parseInt(page.name)+1);
+        }
+        List<Page> updated = new ArrayList<>();
+        int written = 0;
+        for(int i=0; i<pages.size(); ) {
+            if( !changes.containsKey(i) ) {
+                updated.add(pages.get(i++));
+                continue;
+            }
+            // Each run of adjacent changed pages is merged, keeping the rows in order across the pages
+            List<String> names = new ArrayList<>();
+            List<Entry> entries = new ArrayList<>();
+            List<Entry> added = new ArrayList<>();
+            for(; i<pages.size() && changes.containsKey(i); i++) {
+                names.add(pages.get(i).name);
+                entries.addAll(readPage(key, keyHandler, pages.get(i)));
+                added.addAll(changes.get(i));
+            }
+            entries.removeIf(entry -> changedUids.contains(entry.studyUid));
+            entries.addAll(added);
+            entries.sort(null);
+            // The run keeps its number of pages unless they grow past twice the page size, when they are split
+            int count = entries.size()>2*pageSize*names.size() ? (entries.size()+pageSize-1)/pageSize : names.size();
+            count = Math.min(count, entries.size());
+            for(int page=0; page<count; page++) {
+                String name = page<names.size() ? names.get(page) : String.valueOf(nextName++);
+                updated.add(writePage(json, name,
+                        entries.subList(page*entries.size()/count, (page+1)*entries.size()/count)));
+                written++;
+            }
+        }
+        writeManifest(keyHandler, key, updated);
+        deleteUnlisted(keyHandler, pages, updated);
+        return written;
+    }
+
+    /** Returns the position of the page a new row with the given key value belongs on */
+    static int pageFor(List<Page> pages, String value) {
+        int ret = 0;
+        for(int i=1; i<pages.size(); i++) {
+            if( pages.get(i).first.compareTo(value)<=0 ) ret = i;
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the rows of a page with the key each is listed under.  A study listed under several keys, such as
+     * its modalities, is under the lowest of its keys which sorts after the previous row.
+     */
+    List<Entry> readPage(Key key, FileHandler keyHandler, Page page) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if( page.count==0 ) return entries;
+        List<Attributes> rows;
+        try(InputStream is = keyHandler.openForRead(page.name)) {
+            if( is==null ) throw new IOException("Missing page " + page.name + " of the " + key + " query index");
+            rows = JsonWadoAccess.read(is);
+        }
+        Entry previous = null;
+        for(Attributes study : rows) {
+            Entry entry = null;
+            for(String value : key.keysOf(study)) {
+                Entry candidate = new Entry(value, study);
+                boolean inOrder = previous==null ? value.equals(page.first) : candidate.compareTo(previous)>0;
+                if( inOrder && (entry==null || candidate.compareTo(entry)<0) ) entry = candidate;
+            }
+            if( entry==null ) {
+                throw new IOException("Page " + page.name + " of the " + key + " query index is out of order");
+            }
+            entries.add(entry);
+            previous = entry;
+        }
+        return entries;
+    }
+
+    private static List<Attributes> select(Collection<Attributes> studies) {
+        List<Attributes> selected = new ArrayList<>(studies.size());
+        for(Attributes study : studies) {
+            selected.add(DicomSelector.PATIENT_STUDY.select(study));
+        }
+        return selected;
+    }
+
+    private static void addEntries(Key key, Attributes study, List<Entry> entries) {
+        for(String value : key.keysOf(study)) {
+            if( value!=null && !value.isEmpty() ) entries.add(new Entry(value, study));
+        }
+    }
+
+    private static Page writePage(JsonWadoAccess json, String name, List<Entry> entries) {
+        json.writeJson(name, entries.stream().map(entry -> entry.study));
+        return new Page(name, entries.get(0).key, entries.get(entries.size()-1).key, entries.size());
+    }
+
+    private static void deleteUnlisted(FileHandler keyHandler, List<Page> old, List<Page> pages) throws IOException {
+        if( old==null ) return;
+        Set<String> names = new HashSet<>();
+        for(Page page : pages) {
+            names.add(page.name);
+        }
+        for(Page page : old) {
+            if( !names.contains(page.name) && keyHandler.exists(page.name) ) keyHandler.delete(page.name);
+        }
+    }
+
+    private void writeManifest(FileHandler keyHandler, Key key, List<Page> pages) throws IOException {
+        int count = 0;
+        for(Page page : pages) {
+            count += page.count;
+        }
+        try(OutputStream os = keyHandler.openForWrite(MANIFEST)) {
+            JsonGenerator generator = new JsonWadoAccess(keyHandler).createGenerator(os);
+            generator.writeStartObject();
+            generator.write("key", key.name());
+            generator.write("tag", TagUtils.toHexString(key.getTag()));
+            generator.write("count", count);
+            generator.write("pageSize", pageSize);
+            generator.writeStartArray("pages");
+            for(Page page : pages) {
+                generator.writeStartObject();
+                generator.write("name", page.name);
+                generator.write("first", page.first);
+                generator.write("last", page.last);
+                generator.write("count", page.count);
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+            generator.close();
+        }
+    }
+
+    /** Reads the pages listed in the manifest of one key, or returns null if it hasn't been written */
+    static List<Page> readManifest(FileHandler keyHandler) throws IOException {
+        try(InputStream is = keyHandler.openForRead(MANIFEST)) {
+            if( is==null ) return null;
+            List<Page> pages = new ArrayList<>();
+            JsonParser parser = Json.createParser(is);
+            Map<String, String> values = new HashMap<>();
+            String name = null;
+            int depth = 0;
+            while( parser.hasNext() ) {
+                switch(parser.next()) {
+                    case START_OBJECT:
+                        depth++;
+                        values.clear();
+                        break;
+                    case END_OBJECT:
+                        // Each page is an object within the pages array of the root object
+                        if( depth--==2 ) {
+                            pages.add(new Page(values.getOrDefault("name", String.valueOf(pages.size())),
+                                    values.get("first"), values.get("last"), Integer.parseInt(values.get("count"))));
+                        }
+                        break;
+                    case KEY_NAME:
+                        name = parser.getString();
+                        break;
+                    case VALUE_STRING:
+                    case VALUE_NUMBER:
+                        values.put(name, parser.getString());
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return pages;
+        }
+    }
+
+    /** A page of one key's index, as listed in its manifest */
+    static class Page {
+        final String name;
+        final String first;
+        final String last;
+        final int count;
+
+        Page(String name, String first, String last, int count) {
+            this.name = name;
+            this.first = first;
+            this.last = last;
+            this.count = count;
+        }
+
+        boolean covers(String value) {
+            return count>0 && first.compareTo(value)<=0 && last.compareTo(value)>=0;
+        }
+    }
+
+    /** A study under one key value, ordered by the key, then most recent first, then by UID for a stable order */
+    static class Entry implements Comparable<Entry> {
+        final String key;
+        final Attributes study;
+        final String date;
+        final String studyUid;
+
+        Entry(String key, Attributes study) {
+            this.key = key;
+            this.study = study;
+            this.date = study.getString(Tag.StudyDate, "") + study.getString(Tag.StudyTime, "");
+            this.studyUid = study.getString(Tag.StudyInstanceUID, "");
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int ret = key.compareTo(o.key);
+            if( ret==0 ) ret = o.date.compareTo(date);
+            if( ret==0 ) ret = studyUid.compareTo(o.studyUid);
+            return ret;
+        }
+    }
+}
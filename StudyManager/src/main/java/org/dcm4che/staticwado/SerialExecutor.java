@@ -0,0 +1,42 @@
+package org.dcm4che.staticwado;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/** Runs tasks one at a time, in submission order, on a shared executor.
+ * This gives each open study its own ordered lane of work without dedicating a thread to it.
+ * A failed task does not stop the tasks queued after it.
+ */
+public class SerialExecutor implements Executor {
+    /** Runs tasks directly on the submitting thread */
+    public static final Executor DIRECT = Runnable::run;
+
+    private final Executor executor;
+    private CompletableFuture<Void> tail;
+
+    public SerialExecutor(Executor executor) {
+        this(executor, CompletableFuture.completedFuture(null));
+    }
+
+    /** Creates a lane whose first task only starts once after has completed, whether or not it succeeded */
+    public SerialExecutor(Executor executor, CompletableFuture<?> after) {
+        this.executor = executor;
+        this.tail = after.handle((v, e) -> null);
+    }
+
+    /** Queues task to run after all the previously submitted tasks, returning a future for just this task */
+    public synchronized CompletableFuture<Void> submit(Runnable task) {
+        tail = tail.exceptionally(e -> null).thenRunAsync(task, executor);
+        return tail;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        submit(task);
+    }
+
+    /** Returns a future which completes once everything submitted so far has been run */
+    public synchronized CompletableFuture<Void> drain() {
+        return tail.exceptionally(e -> null);
+    }
+}
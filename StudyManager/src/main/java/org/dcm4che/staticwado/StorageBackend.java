@@ -0,0 +1,42 @@
+package org.dcm4che.staticwado;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Set;
+
+/**
+ * Where the DICOMweb tree is stored, for example a local directory or an object store bucket.  Paths are / separated
+ * and relative to the root of the tree.  Each path may be stored in several encodings, with a null encoding for the
+ * unencoded content.  The content passed to and returned from a backend is already encoded.
+ */
+public interface StorageBackend {
+    /** Opens path for writing.  The content is complete and visible once the stream is closed. */
+    OutputStream openForWrite(String path, ContentEncoding encoding) throws IOException;
+
+    /** Opens path for reading, or returns null if it doesn't exist */
+    InputStream openForRead(String path, ContentEncoding encoding) throws IOException;
+
+    boolean exists(String path, ContentEncoding encoding) throws IOException;
+
+    /**
+     * Stores the already encoded local file src at path, in one pass, and deletes src.  This is used for content
+     * staged locally before its name is known, such as bulkdata named by its hash.
+     */
+    default void putFile(File src, String path, ContentEncoding encoding) throws IOException {
+        try(OutputStream os = openForWrite(path, encoding)) {
+            Files.copy(src.toPath(), os);
+        }
+        Files.delete(src.toPath());
+    }
+
+    /** Deletes path if it exists */
+    void delete(String path, ContentEncoding encoding) throws IOException;
+
+    /** Returns the encodings to write, out of the requested ones, for stores which can't hold all of them */
+    default Set<ContentEncoding> getEncodings(Set<ContentEncoding> requested) {
+        return requested;
+    }
+}
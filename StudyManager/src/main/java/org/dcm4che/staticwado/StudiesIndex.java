@@ -0,0 +1,174 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * A studies list split into shards by a hash of the Study Instance UID, so that adding or removing a study only
+ * rewrites its own shard rather than the full list.  The index is laid out as studies-index/index, a small root
+ * manifest with the number of studies in each shard, and studies-index/XX, the study query results of each shard.
+ * The shard of a study is the first two hex digits of the SHA-1 of its UID, so a client can go straight to the
+ * shard for a given study, or read the non-empty shards listed in the manifest to list every study.
+ * <p>
+ * Updates only read the manifest and the changed shards, so their cost depends on the number of studies changed,
+ * not the size of the archive.
+ */
+public class StudiesIndex {
+    private static final Logger log = LoggerFactory.getLogger(StudiesIndex.class);
+
+    public static final String INDEX_DIR = "studies-index";
+    public static final String MANIFEST = "index";
+    static final int VERSION = 1;
+    public static final int SHARD_COUNT = 256;
+
+    private final FileHandler handler;
+
+    /** @param handler is the handler for the index directory */
+    public StudiesIndex(FileHandler handler) {
+        this.handler = handler;
+    }
+
+    /** Returns the name of the shard holding studyUid */
+    public static String shardOf(String studyUid) {
+        MessageDigest digest = FileHandler.createDigest();
+        byte[] hash = digest.digest(studyUid.getBytes(StandardCharsets.US_ASCII));
+        return String.format("%02x", hash[0] & 0xFF);
+    }
+
+    /**
+     * Adds or replaces the given studies, and removes the removed study UIDs, rewriting only the shards they are in
+     * and then the manifest.
+     */
+    public void update(Collection<Attributes> added, Collection<String> removed) throws IOException {
+        Map<String, Map<String, Attributes>> changes = new TreeMap<>();
+        for(Attributes study : added) {
+            String studyUid = study.getString(Tag.StudyInstanceUID);
+            changes.computeIfAbsent(shardOf(studyUid), key -> new HashMap<>()).put(studyUid, study);
+        }
+        for(String studyUid : removed) {
+            // A null value marks a removed study
+            changes.computeIfAbsent(shardOf(studyUid), key -> new HashMap<>()).put(studyUid, null);
+        }
+        if( changes.isEmpty() ) return;
+        Map<String, Integer> counts = readManifest();
+        JsonWadoAccess json = new JsonWadoAccess(handler);
+        for(Map.Entry<String, Map<String, Attributes>> change : changes.entrySet()) {
+            String shard = change.getKey();
+            Map<String, Attributes> studies = new LinkedHashMap<>();
+            for(Attributes study : readShard(shard)) {
+                studies.put(study.getString(Tag.StudyInstanceUID), study);
+            }
+            change.getValue().forEach((studyUid, study) -> {
+                if( study==null ) {
+                    studies.remove(studyUid);
+                } else {
+                    studies.put(studyUid, study);
+                }
+            });
+            if( studies.isEmpty() ) {
+                handler.delete(shard);
+                counts.remove(shard);
+            } else {
+                json.writeJson(shard, studies.values());
+                counts.put(shard, studies.size());
+            }
+        }
+        writeManifest(counts);
+        log.warn("Updated {} studies index shards", changes.size());
+    }
+
+    /** Returns the studies in the shard, or an empty list if the shard doesn't exist */
+    public List<Attributes> readShard(String shard) throws IOException {
+        try(InputStream is = handler.openForRead(shard)) {
+            return is==null ? Collections.emptyList() : JsonWadoAccess.read(is);
+        }
+    }
+
+    /** Returns every study in the index, reading each non-empty shard listed in the manifest */
+    public List<Attributes> readAll() throws IOException {
+        List<Attributes> ret = new ArrayList<>();
+        for(String shard : readManifest().keySet()) {
+            ret.addAll(readShard(shard));
+        }
+        return ret;
+    }
+
+    /** Returns the study attributes for studyUid, or null if it isn't in the index */
+    public Attributes getStudy(String studyUid) throws IOException {
+        for(Attributes study : readShard(shardOf(studyUid))) {
+            if( studyUid.equals(study.getString(Tag.StudyInstanceUID)) ) return study;
+        }
+        return null;
+    }
+
+    /** Returns the indexed attributes of those of the given studies which are in the index, reading each shard once */
+    public List<Attributes> getStudies(Collection<String> studyUids) throws IOException {
+        Map<String, Set<String>> shards = new TreeMap<>();
+        for(String studyUid : studyUids) {
+            shards.computeIfAbsent(shardOf(studyUid), key -> new HashSet<>()).add(studyUid);
+        }
+        List<Attributes> ret = new ArrayList<>();
+        for(Map.Entry<String, Set<String>> shard : shards.entrySet()) {
+            for(Attributes study : readShard(shard.getKey())) {
+                if( shard.getValue().contains(study.getString(Tag.StudyInstanceUID)) ) ret.add(study);
+            }
+        }
+        return ret;
+    }
+
+    /** Reads the number of studies in each non-empty shard from the manifest */
+    public Map<String, Integer> readManifest() throws IOException {
+        Map<String, Integer> counts = new TreeMap<>();
+        try(InputStream is = handler.openForRead(MANIFEST)) {
+            if( is==null ) return counts;
+            JsonParser parser = Json.createParser(is);
+            boolean inCounts = false;
+            String key = null;
+            while( parser.hasNext() ) {
+                JsonParser.Event event = parser.next();
+                if( event==JsonParser.Event.KEY_NAME ) {
+                    key = parser.getString();
+                } else if( event==JsonParser.Event.START_OBJECT && "counts".equals(key) ) {
+                    inCounts = true;
+                } else if( event==JsonParser.Event.END_OBJECT ) {
+                    inCounts = false;
+                } else if( event==JsonParser.Event.VALUE_NUMBER && inCounts ) {
+                    counts.put(key, parser.getInt());
+                }
+            }
+        }
+        return counts;
+    }
+
+    private void writeManifest(Map<String, Integer> counts) throws IOException {
+        long total = 0;
+        try(OutputStream os = handler.openForWrite(MANIFEST)) {
+            JsonGenerator generator = new JsonWadoAccess(handler).createGenerator(os);
+            generator.writeStartObject();
+            generator.write("version", VERSION);
+            generator.write("hash", "SHA-1");
+            generator.write("shards", SHARD_COUNT);
+            generator.writeStartObject("counts");
+            for(Map.Entry<String, Integer> count : counts.entrySet()) {
+                generator.write(count.getKey(), count.getValue());
+                total += count.getValue();
+            }
+            generator.writeEnd();
+            generator.write("total", total);
+            generator.writeEnd();
+            generator.close();
+        }
+    }
+}
@@ -6,20 +6,32 @@ import org.dcm4che3.data.VR;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-
-/** A holder class for study data */
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/** A holder class for study data.  Objects may be added concurrently, typically from one thread per series.
+ * The instances are indexed by series, and the instance level query attributes are selected once as each
+ * object is added, so that writing the study out is linear in the number of instances.
+ * <p>
+ * When a spill directory is set, only the first maxInMemory instances keep their full metadata on the heap,
+ * and the full metadata of the remaining instances is written to a temporary file per series.
+ */
 public class StudyData {
     private static final Logger log = LoggerFactory.getLogger(StudyData.class);
 
     String studyUid;
     Attributes studyAttributes;
-    Map<String,Attributes> metadata = new HashMap<>();
-    Map<String,Attributes> series = new HashMap<>();
+    Set<String> sopUids = ConcurrentHashMap.newKeySet();
+    Map<String,SeriesData> series = new ConcurrentHashMap<>();
+    private File spillDir;
+    private int maxInMemory = Integer.MAX_VALUE;
+    private final AtomicInteger inMemory = new AtomicInteger();
 
     public StudyData(Attributes attr) {
         studyUid = attr.getString(Tag.StudyInstanceUID);
@@ -34,7 +46,13 @@ public class StudyData {
         return studyAttributes;
     }
 
-    public void appendModality(String modality) {
+    /** Sets the directory to write full metadata to once more than maxInMemory instances are held */
+    public void setSpill(File spillDir, int maxInMemory) {
+        this.spillDir = spillDir;
+        this.maxInMemory = maxInMemory;
+    }
+
+    public synchronized void appendModality(String modality) {
         if( modality==null ) return;
         String[] modalities = studyAttributes.getStrings(Tag.ModalitiesInStudy);
         if( modalities==null ) {
@@ -51,19 +69,23 @@ public class StudyData {
 
     public void addObject(Attributes attr) {
         String sopUid = attr.getString(Tag.SOPInstanceUID);
-        if( metadata.put(sopUid,attr)!=null ) {
+        if( !sopUids.add(sopUid) ) {
             log.warn("Already contains {}", sopUid);
             return;
         }
         String seriesUid = attr.getString(Tag.SeriesInstanceUID);
         addMissing(attr);
-        Attributes seriesData = series.computeIfAbsent(seriesUid, (key) -> {
+        SeriesData seriesData = series.computeIfAbsent(seriesUid, (key) -> {
             appendModality(attr.getString(Tag.Modality));
-            Attributes seriesAttr = DicomSelector.SERIES.select(attr);
-            return seriesAttr;
+            return new SeriesData(DicomSelector.SERIES.select(attr));
         });
-        log.debug("Adding series {} with contents {}", seriesUid, seriesData);
-        seriesData.setInt(Tag.NumberOfSeriesRelatedInstances,VR.IS, 1+seriesData.getInt(Tag.NumberOfSeriesRelatedInstances,0));
+        log.debug("Adding series {} with contents {}", seriesUid, seriesData.attributes);
+        Attributes instance = DicomSelector.INSTANCE.select(attr);
+        if( spillDir!=null && inMemory.incrementAndGet()>maxInMemory ) {
+            seriesData.spill(new File(spillDir, studyUid + "/" + seriesUid + ".metadata"), sopUid, attr, instance);
+        } else {
+            seriesData.add(sopUid, attr, instance);
+        }
     }
 
     public void addMissing(Attributes seriesAttr) {
@@ -79,33 +101,90 @@ public class StudyData {
 
     /** Updates the number of series and number of instances */
     public void updateCounts() {
-        studyAttributes.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS, metadata.size());
+        studyAttributes.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS, sopUids.size());
         studyAttributes.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS, series.size());
     }
 
-    public Attributes[] getMetadata() {
-        return metadata.values().toArray(Attributes[]::new);
+    /** Returns the full metadata of every instance, read back from the spill files as required */
+    public Iterable<Attributes> getMetadata() {
+        return () -> series.values().stream()
+                .flatMap(seriesData -> StreamSupport.stream(seriesData.getMetadata().spliterator(), false))
+                .iterator();
     }
 
-    public Attributes[] getSeries() {
-        return series.values().toArray(Attributes[]::new);
+    public Iterable<Attributes> getSeries() {
+        return () -> series.values().stream().map(seriesData -> seriesData.attributes).iterator();
     }
 
-    public Attributes[] getInstances() {
-        return metadata.values().stream().map( DicomSelector.INSTANCE::select ).toArray(Attributes[]::new);
+    public Iterable<Attributes> getInstances() {
+        return () -> series.values().stream().flatMap(seriesData -> seriesData.instances.values().stream()).iterator();
     }
 
-    public Attributes[] getInstances(String seriesUid) {
-        return metadata.values().stream().filter(attr -> seriesUid.equals(attr.getString(Tag.SeriesInstanceUID)))
-                .map( DicomSelector.INSTANCE::select ).toArray(Attributes[]::new);
+    public Iterable<Attributes> getInstances(String seriesUid) {
+        SeriesData seriesData = series.get(seriesUid);
+        return seriesData==null ? Collections.emptyList() : seriesData.instances.values();
     }
 
     public Collection<String> getSeriesUids() {
         return series.keySet();
     }
 
-    public Attributes[] getMetadata(String seriesUid) {
-        return metadata.values().stream().filter(attr -> seriesUid.equals(attr.getString(Tag.SeriesInstanceUID)))
-                .toArray(Attributes[]::new);
+    public Iterable<Attributes> getMetadata(String seriesUid) {
+        SeriesData seriesData = series.get(seriesUid);
+        return seriesData==null ? Collections.emptyList() : seriesData.getMetadata();
+    }
+
+    /** Deletes any spill files */
+    public void close() {
+        for(SeriesData seriesData : series.values()) {
+            if( seriesData.spill==null ) continue;
+            try {
+                seriesData.spill.close();
+            } catch(IOException e) {
+                log.warn("Unable to delete {}", seriesData.spill, e);
+            }
+        }
+    }
+
+    /** The series level attributes, and the full metadata and instance query attributes for each SOP instance UID */
+    static class SeriesData {
+        final Attributes attributes;
+        final Map<String,Attributes> metadata = new ConcurrentHashMap<>();
+        final Map<String,Attributes> instances = new ConcurrentHashMap<>();
+        MetadataSpill spill;
+
+        SeriesData(Attributes attributes) {
+            this.attributes = attributes;
+        }
+
+        void add(String sopUid, Attributes attr, Attributes instance) {
+            metadata.put(sopUid, attr);
+            addInstance(sopUid, instance);
+        }
+
+        /** Adds an instance, writing its full metadata to file rather than keeping it */
+        void spill(File file, String sopUid, Attributes attr, Attributes instance) {
+            try {
+                synchronized(this) {
+                    if( spill==null ) spill = new MetadataSpill(file);
+                }
+                spill.append(attr);
+            } catch(IOException e) {
+                throw new UncheckedIOException("Unable to write metadata to " + file, e);
+            }
+            addInstance(sopUid, instance);
+        }
+
+        private void addInstance(String sopUid, Attributes instance) {
+            instances.put(sopUid, instance);
+            synchronized(attributes) {
+                attributes.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS, 1 + attributes.getInt(Tag.NumberOfSeriesRelatedInstances, 0));
+            }
+        }
+
+        Iterable<Attributes> getMetadata() {
+            if( spill==null ) return metadata.values();
+            return () -> Stream.concat(metadata.values().stream(), StreamSupport.stream(spill.spliterator(), false)).iterator();
+        }
     }
 }
@@ -0,0 +1,226 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Holds the currently open studies, each with its own StudyMetadataEngine.  The work for each study runs
+ * in order on its own lane of a shared worker pool, so different studies are processed concurrently.
+ * The series within each study run on lanes of a second pool, see StudyMetadataEngine.
+ * When more than maxOpenStudies are open, the least recently touched study is finalized and closed.
+ * <p>
+ * With a single thread, everything runs in-line on the calling thread.
+ */
+public class StudyEnginePool implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(StudyEnginePool.class);
+
+    private final ExecutorService workers;
+    private final ExecutorService seriesWorkers;
+    /** Converts the frames of multi-frame images, sized by the same thread count as the study and series workers */
+    private final ForkJoinPool framePool;
+    private final Executor executor;
+    private final Executor seriesExecutor;
+    private final int maxOpenStudies;
+    private final Semaphore pending;
+    private String transferSyntaxUid;
+    private BulkdataStore bulkdataStore;
+    private File spillDir;
+    private File stagingDir;
+    private int maxInMemory;
+    /** Numbers the engines, so that each spills to its own directory */
+    private final AtomicInteger engineCount = new AtomicInteger();
+    private Consumer<String> studyListener;
+
+    /** The open studies, in least recently touched order */
+    private final LinkedHashMap<String, OpenStudy> open = new LinkedHashMap<>(16, 0.75f, true);
+    /** The pending finalize of each study, so that a study opened again is only written once it has completed */
+    private final Map<String, CompletableFuture<Void>> finalizing = new ConcurrentHashMap<>();
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+
+    public StudyEnginePool(int threads, int maxOpenStudies) {
+        if (threads > 1) {
+            workers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("StudyEngine"));
+            executor = workers;
+            // Series work runs on its own pool, as the study lanes block waiting for their series to complete
+            seriesWorkers = Executors.newFixedThreadPool(threads, new NamedThreadFactory("SeriesEngine"));
+            seriesExecutor = seriesWorkers;
+            framePool = new ForkJoinPool(threads);
+        } else {
+            workers = null;
+            seriesWorkers = null;
+            executor = SerialExecutor.DIRECT;
+            seriesExecutor = SerialExecutor.DIRECT;
+            framePool = null;
+        }
+        this.maxOpenStudies = Math.max(1, maxOpenStudies);
+        // Bound the queued work, so that reading input throttles when the engines fall behind
+        this.pending = new Semaphore(Math.max(1, threads) * 16);
+    }
+
+    public void setTransferSyntaxUid(String transferSyntaxUid) {
+        this.transferSyntaxUid = transferSyntaxUid;
+    }
+
+    public String getTransferSyntaxUid() {
+        return transferSyntaxUid;
+    }
+
+    public void setBulkdataStore(BulkdataStore bulkdataStore) {
+        this.bulkdataStore = bulkdataStore;
+    }
+
+    /** Sets the local directory that bulkdata is written to while it is hashed, before it is stored under its hash */
+    public void setStagingDir(File stagingDir) {
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * Sets the directory to spill instance metadata to once a study holds more than maxInMemory instances.  The limit
+     * is per open study, so up to maxInMemory times maxOpenStudies instances are held in memory.
+     */
+    public void setSpill(File spillDir, int maxInMemory) {
+        this.spillDir = spillDir;
+        this.maxInMemory = maxInMemory;
+    }
+
+    /**
+     * Sets a listener called with the study UID once each study has been written.  It is called on the study's
+     * worker, so a listener which blocks holds up further work until it catches up.
+     */
+    public void setStudyListener(Consumer<String> studyListener) {
+        this.studyListener = studyListener;
+    }
+
+    public synchronized boolean isOpen(String studyUid) {
+        return open.containsKey(studyUid);
+    }
+
+    /**
+     * Opens a new study for the given instance, finalizing the least recently touched study if there are
+     * too many open.
+     * @param studiesHandler is the handler for the studies directory
+     * @return the study level attributes, which are updated as instances are added to the study.
+     */
+    public Attributes openStudy(Attributes sopAttr, FileHandler studiesHandler) {
+        StudyMetadataEngine engine = new StudyMetadataEngine();
+        engine.setTransferSyntaxUid(transferSyntaxUid);
+        engine.setExecutor(seriesExecutor);
+        engine.setBulkdataStore(bulkdataStore);
+        // A study opened again after being closed gets a new directory, so it never reuses the earlier spill files
+        engine.setSpill(spillDir!=null ? new File(spillDir, String.valueOf(engineCount.incrementAndGet())) : null, maxInMemory);
+        engine.setStagingDir(stagingDir);
+        engine.setFramePool(framePool);
+        Attributes studyAttr = engine.openNewStudy(sopAttr, studiesHandler);
+        // The study may have been closed earlier in the run, and its output must not be written concurrently
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        OpenStudy study = new OpenStudy(engine, new SerialExecutor(executor, ready));
+        List<OpenStudy> evicted = new ArrayList<>();
+        synchronized (this) {
+            OpenStudy previous = open.put(engine.studyData.getStudyUid(), study);
+            if (previous != null) evicted.add(previous);
+            Iterator<OpenStudy> it = open.values().iterator();
+            while (open.size() > maxOpenStudies && it.hasNext()) {
+                OpenStudy eldest = it.next();
+                if (eldest == study) continue;
+                it.remove();
+                evicted.add(eldest);
+            }
+        }
+        evicted.forEach(this::finalizeStudy);
+        CompletableFuture<Void> previousFinalize = finalizing.get(study.studyUid);
+        if (previousFinalize == null) {
+            ready.complete(null);
+        } else {
+            previousFinalize.whenComplete((v, e) -> ready.complete(null));
+        }
+        return studyAttr;
+    }
+
+    /** Queues attr to be added to its already open study */
+    public void addObject(File file, Attributes attr) {
+        String studyUid = attr.getString(Tag.StudyInstanceUID);
+        OpenStudy study;
+        synchronized (this) {
+            study = open.get(studyUid);
+        }
+        if (study == null) {
+            throw new IllegalStateException("Study " + studyUid + " is not open");
+        }
+        submit(study, () -> study.engine.addObject(file, attr), attr.getString(Tag.SOPInstanceUID));
+    }
+
+    /**
+     * Finalizes all the open studies, and waits for them to complete.
+     * @throws IOException with the failures suppressed in it, if any of the work on the studies failed
+     */
+    public void finalizeAll() throws IOException {
+        List<OpenStudy> studies;
+        synchronized (this) {
+            studies = new ArrayList<>(open.values());
+            open.clear();
+        }
+        studies.forEach(this::finalizeStudy);
+        for (CompletableFuture<Void> future : finalizing.values().toArray(CompletableFuture[]::new)) {
+            future.exceptionally(e -> null).join();
+        }
+        if (failures.isEmpty()) return;
+        IOException error = new IOException("Unable to write " + failures.size() + " studies or objects");
+        failures.forEach(error::addSuppressed);
+        failures.clear();
+        throw error;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finalizeAll();
+        } finally {
+            if (workers != null) workers.shutdown();
+            if (seriesWorkers != null) seriesWorkers.shutdown();
+            if (framePool != null) framePool.shutdown();
+        }
+    }
+
+    private void finalizeStudy(OpenStudy study) {
+        CompletableFuture<Void> future = submit(study, () -> {
+            study.engine.finalizeStudy();
+            if (studyListener != null) studyListener.accept(study.studyUid);
+        }, "finalize");
+        finalizing.put(study.studyUid, future);
+        future.whenComplete((v, e) -> finalizing.remove(study.studyUid, future));
+    }
+
+    /** Queues task on the study's lane, recording any failure to be thrown by finalizeAll */
+    private CompletableFuture<Void> submit(OpenStudy study, Runnable task, String name) {
+        pending.acquireUninterruptibly();
+        return study.lane.submit(task).whenComplete((v, e) -> {
+            pending.release();
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                log.warn("Unable to {} on study {}", name, study.studyUid, cause);
+                failures.add(cause);
+            }
+        });
+    }
+
+    static class OpenStudy {
+        final StudyMetadataEngine engine;
+        final SerialExecutor lane;
+        final String studyUid;
+
+        OpenStudy(StudyMetadataEngine engine, SerialExecutor lane) {
+            this.engine = engine;
+            this.lane = lane;
+            this.studyUid = engine.studyData.getStudyUid();
+        }
+    }
+}
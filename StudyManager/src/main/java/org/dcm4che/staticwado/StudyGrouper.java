@@ -0,0 +1,168 @@
+package org.dcm4che.staticwado;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/** Groups input files by study instance UID, so that every study is processed exactly once regardless of
+ * the input order.  The (studyUID, path) entries are sorted in memory until there are more than maxInMemory
+ * of them, at which point the sorted run is spilled to disk, and the runs are merged when iterating.
+ * Within a study, files are returned in the order they were added.
+ */
+public class StudyGrouper implements Iterable<File>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(StudyGrouper.class);
+
+    public static final int DEFAULT_MAX_IN_MEMORY = 250_000;
+
+    private final File tempDir;
+    private final int maxInMemory;
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private long sequence;
+
+    public StudyGrouper(File tempDir, int maxInMemory) {
+        this.tempDir = tempDir;
+        this.maxInMemory = Math.max(1, maxInMemory);
+    }
+
+    public synchronized void add(String studyUid, File file) {
+        entries.add(new Entry(studyUid, sequence++, file.getPath()));
+        if (entries.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    public synchronized long size() {
+        return sequence;
+    }
+
+    /** Writes the current entries out as a sorted run */
+    private void spill() {
+        entries.sort(null);
+        tempDir.mkdirs();
+        try {
+            File run = File.createTempFile("group", ".run", tempDir);
+            log.info("Spilling {} study entries to {}", entries.size(), run);
+            try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+                for (Entry entry : entries) {
+                    entry.write(dos);
+                }
+            }
+            runs.add(run);
+            entries.clear();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to spill study grouping entries to " + tempDir, e);
+        }
+    }
+
+    /** Returns the files grouped by study, merging any spilled runs with the in memory entries */
+    @Override
+    public synchronized Iterator<File> iterator() {
+        entries.sort(null);
+        PriorityQueue<Run> queue = new PriorityQueue<>();
+        Iterator<Entry> memory = entries.iterator();
+        Run memoryRun = new Run(memory::hasNext, memory::next, null);
+        if (memoryRun.advance()) queue.add(memoryRun);
+        for (File file : runs) {
+            try {
+                DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                Run run = new Run(() -> dis.available() > 0, () -> Entry.read(dis), dis);
+                if (run.advance()) queue.add(run);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read study grouping run " + file, e);
+            }
+        }
+        return new Iterator<File>() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public File next() {
+                Run run = queue.poll();
+                if (run == null) throw new NoSuchElementException();
+                File ret = new File(run.current.path);
+                if (run.advance()) queue.add(run);
+                return ret;
+            }
+        };
+    }
+
+    /** Deletes any spilled runs */
+    @Override
+    public synchronized void close() {
+        for (File run : runs) {
+            if (!run.delete()) log.warn("Unable to delete {}", run);
+        }
+        runs.clear();
+        entries.clear();
+    }
+
+    interface Source<T> {
+        T get() throws IOException;
+    }
+
+    /** A sorted run of entries, positioned at the current entry */
+    static class Run implements Comparable<Run> {
+        private final Source<Boolean> hasNext;
+        private final Source<Entry> next;
+        private final Closeable closeable;
+        Entry current;
+
+        Run(Source<Boolean> hasNext, Source<Entry> next, Closeable closeable) {
+            this.hasNext = hasNext;
+            this.next = next;
+            this.closeable = closeable;
+        }
+
+        boolean advance() {
+            try {
+                if (hasNext.get()) {
+                    current = next.get();
+                    return true;
+                }
+                current = null;
+                if (closeable != null) closeable.close();
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read study grouping run", e);
+            }
+        }
+
+        @Override
+        public int compareTo(Run o) {
+            return current.compareTo(o.current);
+        }
+    }
+
+    static class Entry implements Comparable<Entry> {
+        final String studyUid;
+        final long sequence;
+        final String path;
+
+        Entry(String studyUid, long sequence, String path) {
+            this.studyUid = studyUid;
+            this.sequence = sequence;
+            this.path = path;
+        }
+
+        void write(DataOutputStream dos) throws IOException {
+            dos.writeUTF(studyUid);
+            dos.writeLong(sequence);
+            dos.writeUTF(path);
+        }
+
+        static Entry read(DataInputStream dis) throws IOException {
+            return new Entry(dis.readUTF(), dis.readLong(), dis.readUTF());
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            int ret = studyUid.compareTo(o.studyUid);
+            return ret != 0 ? ret : Long.compare(sequence, o.sequence);
+        }
+    }
+}
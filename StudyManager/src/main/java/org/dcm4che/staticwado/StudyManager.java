@@ -2,10 +2,20 @@ package org.dcm4che.staticwado;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
@@ -17,17 +27,32 @@ import org.slf4j.LoggerFactory;
  * It uses various components to handle the generation.
  * <ul>
  *   <li>StudyMetadataEngine to generate the basic result tree</li>
+ *   <li>StudyEnginePool to hold the open studies, one engine per study</li>
  * </ul>
  */
 public class StudyManager {
     private static final Logger log = LoggerFactory.getLogger(StudyManager.class);
 
     File bulkTempDir;
+    File tempDir;
     File exportDir;
-    Map<String, Attributes> studies = new HashMap<>();
-    StudyMetadataEngine engine = new StudyMetadataEngine();
+    StorageBackend storage;
+    FileHandler studiesHandler;
+    Map<String, Attributes> studies = new ConcurrentHashMap<>();
+    StudyEnginePool engines;
     private long lastLog;
-    private List<String> addedStudies = new ArrayList<>();
+    private Set<String> addedStudies = Collections.synchronizedSet(new LinkedHashSet<>());
+    private int threads = 1;
+    private int maxOpenStudies;
+    private String transferSyntaxUid;
+    private boolean bulkdataInPlace;
+    private boolean sharedBulkdata;
+    private boolean groupStudies;
+    private int groupMemoryEntries = StudyGrouper.DEFAULT_MAX_IN_MEMORY;
+    private int metadataMemoryInstances;
+    private Consumer<String> studyListener;
+    private boolean studiesList = true;
+    private boolean queryIndex;
 
     // 5 second relog
     private static final long RELOG_TIME = 1000L*1000L*1000L*5;
@@ -36,36 +61,165 @@ public class StudyManager {
      * Imports a set of studies from the given directory input, and writes the data to the directory out.
      */
     public String[] importStudies(String... importDirs) {
-        bulkTempDir = new File(exportDir,"temp/"+Math.random());
-        bulkTempDir.mkdirs();
-        for(String importDir : importDirs) {
-            importFile(new File(importDir));
+        bulkTempDir = createRunTempDir();
+        engines = new StudyEnginePool(threads, maxOpenStudies>0 ? maxOpenStudies : threads);
+        engines.setTransferSyntaxUid(transferSyntaxUid);
+        engines.setStudyListener(studyListener);
+        // Create the codecs for each worker up front, rather than on the first instance of each study
+        CodecPool.getShared().warm(transferSyntaxUid, Math.max(1, threads));
+        StorageBackend storage = getStorage();
+        studiesHandler = new FileHandler(storage, "studies");
+        if( studiesList ) readStudiesList(storage);
+        BulkdataStore bulkdataStore = sharedBulkdata ? new BulkdataStore(new File(exportDir.getParentFile(), BulkdataStore.BULKDATA_DIR),
+                new FileHandler(storage, BulkdataStore.BULKDATA_DIR)) : null;
+        engines.setBulkdataStore(bulkdataStore);
+        engines.setStagingDir(new File(bulkTempDir, "staging"));
+        if( metadataMemoryInstances>0 ) engines.setSpill(new File(bulkTempDir,"metadata"), metadataMemoryInstances);
+        try(StudyGrouper grouper = groupStudies ? groupByStudy(new FileWalker(importDirs)) : null) {
+            Iterator<File> files = grouper!=null ? grouper.iterator() : new FileWalker(importDirs);
+            if( threads>1 ) {
+                new DicomScanner(threads).scan(files, this::readFile, this::importDicom);
+            } else {
+                files.forEachRemaining(this::tryImportDicom);
+            }
+        } finally {
+            try {
+                closeEngines(bulkdataStore);
+            } finally {
+                FileHandler.deleteRecursively(bulkTempDir);
+            }
+        }
+        String[] added;
+        synchronized(addedStudies) {
+            added = addedStudies.toArray(String[]::new);
+        }
+        // The earlier versions of the added studies, so that the query indexes can remove their old rows
+        List<Attributes> previous = queryIndex ? readIndexedStudies(storage, added) : Collections.emptyList();
+        updateStudiesIndex(storage, added);
+        if( studiesList ) {
+            FileHandler handler = new FileHandler(storage, "");
+            JsonWadoAccess json = new JsonWadoAccess(handler);
+            json.setPretty(true);
+            json.writeJson("studies.json", studies.values());
+            json.writeJson("studies", studies.values());
+        }
+        if( queryIndex ) writeQueryIndex(storage, previous, added);
+        return added;
+    }
+
+    /**
+     * Updates the QIDO search indexes for the studies added in this run.  The first time, they are built from every
+     * study, which are in the studies index if not in memory.
+     */
+    void writeQueryIndex(StorageBackend storage, List<Attributes> previous, String[] added) {
+        try {
+            QueryIndex index = new QueryIndex(new FileHandler(storage, QueryIndex.QIDO_DIR));
+            if( index.update(previous, addedStudies(added)) ) return;
+            Collection<Attributes> all = studiesList ? studies.values()
+                    : new StudiesIndex(new FileHandler(storage, StudiesIndex.INDEX_DIR)).readAll();
+            index.write(all);
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to write the query indexes", e);
         }
-        engine.finalizeStudy();
-        FileHandler handler = new FileHandler(exportDir);
-        JsonWadoAccess json = new JsonWadoAccess(handler);
-        json.setPretty(true);
-        json.writeJson("../studies.json", studies.values().toArray(Attributes[]::new));
-        handler.setGzip(true);
-        json.writeJson("../studies", studies.values().toArray(Attributes[]::new));
-        return addedStudies.toArray(String[]::new);
-    }
-
-    private void importFile(File file) {
-        if( file.isDirectory() ) {
-            log.debug("Directory {} being recursed into", file);
-            for(File subFile : file.listFiles()) {
-                importFile(subFile);
+    }
+
+    /** Waits for all the studies to be written, throwing if any study or object couldn't be written */
+    void closeEngines(BulkdataStore bulkdataStore) {
+        try {
+            try {
+                engines.close();
+            } finally {
+                if( bulkdataStore!=null ) bulkdataStore.close();
             }
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to write all the studies", e);
+        }
+    }
+
+    /** Updates the shards of the sharded studies index for the studies added in this run */
+    void updateStudiesIndex(StorageBackend storage, String[] added) {
+        try {
+            new StudiesIndex(new FileHandler(storage, StudiesIndex.INDEX_DIR)).update(addedStudies(added), Collections.emptyList());
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to update the studies index", e);
+        }
+    }
+
+    /** Reads the studies index entries of the given studies, as they were before this run */
+    List<Attributes> readIndexedStudies(StorageBackend storage, String[] added) {
+        try {
+            return new StudiesIndex(new FileHandler(storage, StudiesIndex.INDEX_DIR)).getStudies(Arrays.asList(added));
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to read the studies index", e);
+        }
+    }
+
+    private List<Attributes> addedStudies(String[] added) {
+        List<Attributes> ret = new ArrayList<>(added.length);
+        for(String studyUid : added) {
+            Attributes studyAttr = studies.get(studyUid);
+            if( studyAttr!=null ) ret.add(studyAttr);
+        }
+        return ret;
+    }
+
+    /** Reads the full studies list, which is replaced at the end of the run */
+    void readStudiesList(StorageBackend storage) {
+        try {
+            for(Attributes attr : new JsonWadoAccess(new FileHandler(storage, "")).read("studies")) {
+                studies.putIfAbsent(attr.getString(Tag.StudyInstanceUID), attr);
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to read the studies list from " + storage, e);
+        }
+    }
+
+    /** Creates the temporary directory for this run, which is removed once the run is complete */
+    File createRunTempDir() {
+        File base = tempDir!=null ? tempDir : new File(exportDir,"temp");
+        base.mkdirs();
+        try {
+            return Files.createTempDirectory(base.toPath(), "run").toFile();
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to create temporary directory in " + base, e);
+        }
+    }
+
+    /**
+     * Does a header only scan of all the files, grouping them by study so that each study is only
+     * opened once on the full import, no matter how the input files are interleaved.
+     */
+    StudyGrouper groupByStudy(Iterator<File> files) {
+        StudyGrouper grouper = new StudyGrouper(new File(bulkTempDir,"group"), groupMemoryEntries);
+        BiConsumer<File,Attributes> addToGroup = (file,attr) -> {
+            String studyUID = attr.getString(Tag.StudyInstanceUID);
+            if( studyUID==null ) {
+                log.debug("Not grouping {} without a study UID", file);
+                return;
+            }
+            grouper.add(studyUID, file);
+        };
+        if( threads>1 ) {
+            new DicomScanner(threads).scan(files, DicomAccess::readStudyHeader, addToGroup);
         } else {
-            log.debug("File {} being examined", file);
-            tryImportDicom(file);
+            files.forEachRemaining(file -> {
+                try {
+                    addToGroup.accept(file, DicomAccess.readStudyHeader(file));
+                } catch(DicomStreamException dse) {
+                    log.debug("Skipping non-dicom {}", file);
+                } catch(IOException e) {
+                    log.warn("Caught exception:"+e);
+                }
+            });
         }
+        log.warn("Grouped {} files by study", grouper.size());
+        return grouper;
     }
 
     private void tryImportDicom(File file) {
+        log.debug("File {} being examined", file);
         try {
-            importDicom(file);
+            importDicom(file, readFile(file));
         } catch(DicomStreamException dse) {
             log.debug("Skipping non-dicom {}", file);
         } catch(IOException e) {
@@ -73,18 +227,20 @@ public class StudyManager {
         }
     }
 
-    void importDicom(File file) throws IOException {
-        Attributes attr = DicomAccess.readFile(file.getPath(), bulkTempDir);
+    Attributes readFile(File file) throws IOException {
+        return DicomAccess.readFile(file.getPath(), bulkTempDir, bulkdataInPlace);
+    }
+
+    void importDicom(File file, Attributes attr) {
         String studyUID = attr.getString(Tag.StudyInstanceUID);
         if( studyUID==null ) {
             if( file.getName().contains("DICOMDIR") ) return;
             log.warn("Null studyUID on {}", file);
             return;
         }
-        if( engine.isNewStudy(studyUID) ) {
-            engine.finalizeStudy();
+        if( !engines.isOpen(studyUID) ) {
             log.warn("Adding a new study UID {}", studyUID);
-            Attributes studyAttr = engine.openNewStudy(attr, exportDir);
+            Attributes studyAttr = engines.openStudy(attr, studiesHandler);
             studies.put(studyUID, studyAttr);
             addedStudies.add(studyUID);
             lastLog = System.nanoTime();
@@ -92,19 +248,104 @@ public class StudyManager {
             lastLog = System.nanoTime();
             log.warn("Continuing study {} on sop {}", studyUID, attr.getString(Tag.SOPInstanceUID));
         }
-        engine.addObject(file, attr);
+        engines.addObject(file, attr);
     }
 
     public void setExportDir(String name) {
         this.exportDir = new File(name+"/studies");
-        JsonWadoAccess.readStudiesDirectory(studies,new File(name+"/studies.gz"));
+    }
+
+    /**
+     * Sets where the DICOMweb tree is written, for example directly to an object store.  Defaults to the export
+     * directory.  The studies lists are read from and written to the storage, while temporary files and the
+     * bulkdata reference index remain in the local export directory.
+     */
+    public void setStorage(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Sets whether the full studies list is read at the start of the run and written at the end, as well as the
+     * sharded studies index.  Defaults to true.  Without it, the cost of each run only depends on the studies in it,
+     * rather than the size of the archive.
+     */
+    public void setStudiesList(boolean studiesList) {
+        this.studiesList = studiesList;
+    }
+
+    /** Sets whether the precomputed QIDO search indexes under qido are rebuilt at the end of the import */
+    public void setQueryIndex(boolean queryIndex) {
+        this.queryIndex = queryIndex;
+    }
+
+    StorageBackend getStorage() {
+        if( storage==null ) storage = new FileStorage(exportDir.getParentFile());
+        return storage;
+    }
+
+    /**
+     * Sets a listener called with each study UID as soon as the study has been written, for example to start
+     * uploading it while the remaining studies are generated.  Blocking in the listener throttles the import.
+     */
+    public void setStudyListener(Consumer<String> studyListener) {
+        this.studyListener = studyListener;
+    }
+
+    /** Sets the number of threads used to walk and parse the input files, and to process the open studies.
+     * Defaults to 1, for an in-line scan. */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** Sets the maximum number of studies open at once.  Defaults to the number of threads. */
+    public void setMaxOpenStudies(int maxOpenStudies) {
+        this.maxOpenStudies = maxOpenStudies;
+    }
+
+    /** Sets whether a header only pre-pass is used to group the input files by study before importing them */
+    public void setGroupStudies(boolean groupStudies) {
+        this.groupStudies = groupStudies;
+    }
+
+    /** Sets the number of grouping entries held in memory before spilling a sorted run to disk */
+    public void setGroupMemoryEntries(int groupMemoryEntries) {
+        this.groupMemoryEntries = groupMemoryEntries;
+    }
+
+    /** Sets the number of instances per study whose full metadata is held in memory, with the remainder written
+     * to temporary files until the study is finalized.  Zero, the default, holds all the metadata in memory.
+     * Each open study holds its own instances, so memory is bounded by this times the maximum open studies. */
+    public void setMetadataMemoryInstances(int metadataMemoryInstances) {
+        this.metadataMemoryInstances = metadataMemoryInstances;
+    }
+
+    /** Sets the base directory for temporary files, for example a tmpfs mount.  Defaults to the temp directory
+     * under the export directory.  Each run uses its own sub-directory, deleted at the end of the run. */
+    public void setTempDir(String name) {
+        this.tempDir = name!=null ? new File(name) : null;
+    }
+
+    /** Sets whether native bulkdata is referenced in place in the source files rather than being copied to the
+     * temp directory first */
+    public void setBulkdataInPlace(boolean bulkdataInPlace) {
+        this.bulkdataInPlace = bulkdataInPlace;
+    }
+
+    /** Sets whether non-image bulkdata is written to a content addressed store shared by all studies,
+     * rather than to the bulkdata directory of each study */
+    public void setSharedBulkdata(boolean sharedBulkdata) {
+        this.sharedBulkdata = sharedBulkdata;
     }
 
     public String getTransferSyntaxUid() {
-        return engine.getTransferSyntaxUid();
+        return transferSyntaxUid;
     }
 
     public void setTransferSyntaxUid(String imageContentType) {
-        engine.setTransferSyntaxUid(imageContentType);
+        this.transferSyntaxUid = imageContentType;
     }
 }
\ No newline at end of file
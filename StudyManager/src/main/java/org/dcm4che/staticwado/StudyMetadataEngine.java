@@ -7,18 +7,36 @@ import static org.dcm4che.staticwado.DicomAccess.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * The study metadata engine has the internal knowledge on how to read DICOM files and add them to a static WADO
  * study metadata tree.
+ * Objects are added on one ordered lane per series, so the series of a large study are processed concurrently
+ * when an executor is set.
  */
 public class StudyMetadataEngine {
     private static final Logger log = LoggerFactory.getLogger(StudyMetadataEngine.class);
 
+    // The maximum number of objects queued on the series lanes before addObject waits
+    private static final int MAX_PENDING = 64;
+
+    // The number of instance metadata files written by each finalize task
+    private static final int INSTANCES_PER_TASK = 64;
+
     StudyData studyData;
     FileHandler handler;
-    private BulkDataAccess bulkDataAccess;
     private String transferSyntaxUid;
+    private BulkdataStore bulkdataStore;
+    private File spillDir;
+    private File stagingDir;
+    private ForkJoinPool framePool;
+    private int maxInMemory;
+    private Executor executor = SerialExecutor.DIRECT;
+    private final Map<String,SeriesLane> seriesLanes = new ConcurrentHashMap<>();
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    /** The objects which couldn't be added on the series lanes, which fail the study when it is finalized */
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
 
     public boolean isNewStudy(String testUID) {
         return studyData == null || !studyData.getStudyUid().equals(testUID);
@@ -27,32 +45,120 @@ public class StudyMetadataEngine {
     public void finalizeStudy() {
         if (studyData == null) return;
         try {
+            awaitSeries();
             log.warn("Finalizing study {}", studyData.getStudyUid());
             studyData.updateCounts();
+            StudyData study = studyData;
             JsonWadoAccess json = new JsonWadoAccess(handler);
-            Attributes[] instances = studyData.getInstances();
-            handler.setGzip(true);
-            json.writeJson("studies", studyData.getStudyAttributes());
-            json.writeJson("series", studyData.getSeries());
-            json.writeJson("instances", instances);
-            json.writeJson("metadata", studyData.getMetadata());
-            studyData.getSeriesUids().forEach(seriesUid -> {
-                json.writeJson("series/" + seriesUid + "/metadata", studyData.getMetadata(seriesUid));
-                json.writeJson( "series/" + seriesUid +"/instances", studyData.getInstances(seriesUid));
-            });
-            Arrays.stream(studyData.getMetadata()).forEach(item -> {
-               String seriesUid = item.getString(Tag.SeriesInstanceUID);
-               String sopUid = item.getString(Tag.SOPInstanceUID);
-               json.writeJson("series/"+seriesUid+"/instances/"+sopUid+"/metadata", new Attributes[]{item});
-            });
-            Attributes[] deduplicated = deduplicate(studyData.getInstances());
-            json.writeJson("deduplicated", deduplicated);
+            Iterable<Attributes> instances = study.getInstances();
+            FileTasks tasks = new FileTasks();
+            try(JsonWadoAccess.ArrayWriter studyMetadata = json.openArray("metadata")) {
+                tasks.submit(() -> json.writeJson("studies", study.getStudyAttributes()));
+                tasks.submit(() -> json.writeJson("series", study.getSeries()));
+                tasks.submit(() -> json.writeJson("instances", instances));
+                tasks.submit(() -> json.writeJson("deduplicated", deduplicate(instances)));
+                for(String seriesUid : study.getSeriesUids()) {
+                    tasks.submit(() -> writeSeries(json, studyMetadata, study, seriesUid, tasks));
+                }
+                tasks.await(study.getStudyUid());
+            }
+            if (bulkdataStore != null) {
+                bulkdataStore.commitStudy(studyData.getStudyUid());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to finalize study " + studyData.getStudyUid(), e);
         } finally {
+            studyData.close();
             studyData = null;
             handler = null;
+            seriesLanes.clear();
+            failures.clear();
+        }
+    }
+
+    /**
+     * Writes the metadata files for one series, reading the series metadata once.  The instance level
+     * metadata files are written by separate tasks, in batches.
+     */
+    private void writeSeries(JsonWadoAccess json, JsonWadoAccess.ArrayWriter studyMetadata, StudyData study, String seriesUid, FileTasks tasks) {
+        try(JsonWadoAccess.ArrayWriter seriesMetadata = json.openArray("series/" + seriesUid + "/metadata")) {
+            List<Attributes> batch = new ArrayList<>(INSTANCES_PER_TASK);
+            for(Attributes item : study.getMetadata(seriesUid)) {
+                studyMetadata.write(item);
+                seriesMetadata.write(item);
+                batch.add(item);
+                if( batch.size()==INSTANCES_PER_TASK ) {
+                    writeInstances(json, seriesUid, batch, tasks);
+                    batch = new ArrayList<>(INSTANCES_PER_TASK);
+                }
+            }
+            if( !batch.isEmpty() ) writeInstances(json, seriesUid, batch, tasks);
+        } catch(IOException e) {
+            throw new UncheckedIOException("Unable to write metadata for series " + seriesUid, e);
+        }
+        json.writeJson( "series/" + seriesUid +"/instances", study.getInstances(seriesUid));
+    }
+
+    private static void writeInstances(JsonWadoAccess json, String seriesUid, List<Attributes> batch, FileTasks tasks) {
+        tasks.submit(() -> {
+            for(Attributes item : batch) {
+                String sopUid = item.getString(Tag.SOPInstanceUID);
+                json.writeJson("series/"+seriesUid+"/instances/"+sopUid+"/metadata", item);
+            }
+        });
+    }
+
+    /**
+     * The file writing tasks of a study being finalized, run on the series executor.  When too many tasks are queued,
+     * new ones run on the submitting thread instead, so tasks which submit further tasks can never deadlock.
+     */
+    class FileTasks {
+        private final Queue<CompletableFuture<Void>> futures = new ConcurrentLinkedQueue<>();
+        private final Queue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        private final Semaphore queued = new Semaphore(MAX_PENDING);
+
+        void submit(Runnable task) {
+            if( !queued.tryAcquire() ) {
+                try {
+                    task.run();
+                } catch(RuntimeException e) {
+                    failures.add(e);
+                }
+                return;
+            }
+            futures.add(CompletableFuture.runAsync(task, executor).whenComplete((v, e) -> queued.release()));
+        }
+
+        /** Waits for all the tasks, including those submitted while waiting, and throws if any of them failed */
+        void await(String studyUid) throws IOException {
+            CompletableFuture<Void> future;
+            while( (future=futures.poll())!=null ) {
+                try {
+                    future.join();
+                } catch(CompletionException e) {
+                    failures.add(e.getCause());
+                }
+            }
+            if( failures.isEmpty() ) return;
+            IOException error = new IOException("Unable to write " + failures.size() + " files for study " + studyUid);
+            failures.forEach(error::addSuppressed);
+            throw error;
         }
     }
 
+    /**
+     * Waits for all the objects added so far to be processed
+     * @throws IOException with the failures suppressed in it, if any of the objects couldn't be added
+     */
+    void awaitSeries() throws IOException {
+        CompletableFuture.allOf(seriesLanes.values().stream().map(lane -> lane.lane.drain())
+                .toArray(CompletableFuture[]::new)).join();
+        if( failures.isEmpty() ) return;
+        IOException error = new IOException("Unable to add " + failures.size() + " objects to study " + studyData.getStudyUid());
+        failures.forEach(error::addSuppressed);
+        throw error;
+    }
+
     public void setTransferSyntaxUid(String transferSyntaxUid) {
         this.transferSyntaxUid = transferSyntaxUid;
     }
@@ -61,18 +167,77 @@ public class StudyMetadataEngine {
         return transferSyntaxUid;
     }
 
-    public Attributes openNewStudy(Attributes sopAttr, File exportDir) {
+    /** Sets the shared store used for non-image bulkdata, or null to store bulkdata in each study */
+    public void setBulkdataStore(BulkdataStore bulkdataStore) {
+        this.bulkdataStore = bulkdataStore;
+    }
+
+    /** Sets the local directory that bulkdata is written to while it is hashed, see BulkDataAccess.setStagingDir */
+    public void setStagingDir(File stagingDir) {
+        this.stagingDir = stagingDir;
+    }
+
+    /** Sets the pool used to convert the frames of multi-frame images in parallel, see BulkDataAccess.setFramePool */
+    public void setFramePool(ForkJoinPool framePool) {
+        this.framePool = framePool;
+    }
+
+    /**
+     * Sets the directory to spill full instance metadata to, once more than maxInMemory instances of a study
+     * are held in memory.  A null directory keeps all of it in memory.
+     */
+    public void setSpill(File spillDir, int maxInMemory) {
+        this.spillDir = spillDir;
+        this.maxInMemory = maxInMemory;
+    }
+
+    /** Sets the executor used to run the series lanes, defaulting to running directly on the calling thread */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Opens the study for sopAttr
+     * @param studiesHandler is the handler for the studies directory, which the study directory is created under
+     */
+    public Attributes openNewStudy(Attributes sopAttr, FileHandler studiesHandler) {
         studyData = new StudyData(sopAttr);
-        handler = new FileHandler(exportDir, studyData.getStudyUid());
-        bulkDataAccess = new BulkDataAccess(handler);
-        bulkDataAccess.setTransferSyntaxUid(transferSyntaxUid);
-        handler.setGzip(true);
+        if( spillDir!=null ) studyData.setSpill(spillDir, maxInMemory);
+        handler = studiesHandler.forSubDir(studyData.getStudyUid());
         return studyData.getStudyAttributes();
     }
 
     public void addObject(File sourceFile, Attributes attr) {
-        studyData.addObject(attr);
-        bulkDataAccess.moveBulkdata(sourceFile, attr);
+        String seriesUid = attr.getString(Tag.SeriesInstanceUID);
+        SeriesLane series = seriesLanes.computeIfAbsent(String.valueOf(seriesUid), key -> new SeriesLane());
+        pending.acquireUninterruptibly();
+        series.lane.submit(() -> {
+            // Move the bulkdata first, as the metadata may be written out as soon as it is added
+            series.bulkDataAccess.moveBulkdata(sourceFile, attr);
+            studyData.addObject(attr);
+        }).whenComplete((v, e) -> {
+            pending.release();
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause()!=null ? e.getCause() : e;
+                log.warn("Unable to add {} to series {}", attr.getString(Tag.SOPInstanceUID), seriesUid, cause);
+                failures.add(cause);
+            }
+        });
+    }
+
+    /** The ordered lane of work for one series, with its own bulkdata access so that series don't share codecs.
+     * The file handler is immutable, so is shared with the study. */
+    class SeriesLane {
+        final SerialExecutor lane = new SerialExecutor(executor);
+        final BulkDataAccess bulkDataAccess;
+
+        SeriesLane() {
+            bulkDataAccess = new BulkDataAccess(handler);
+            bulkDataAccess.setTransferSyntaxUid(transferSyntaxUid);
+            bulkDataAccess.setBulkdataStore(bulkdataStore);
+            if( stagingDir!=null ) bulkDataAccess.setStagingDir(stagingDir);
+            bulkDataAccess.setFramePool(framePool);
+        }
     }
 
     /**
@@ -81,7 +246,7 @@ public class StudyMetadataEngine {
      * @param srcAttr
      * @return
      */
-    public Attributes[] deduplicate(Attributes[] srcAttr) {
+    public Attributes[] deduplicate(Iterable<Attributes> srcAttr) {
         Map<String,Attributes> hashAttributes = new HashMap<>();
         for(Attributes attr : srcAttr) {
             deduplicate(hashAttributes,attr);
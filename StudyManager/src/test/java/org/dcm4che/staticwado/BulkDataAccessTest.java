@@ -0,0 +1,88 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.UID;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BulkDataAccessTest {
+    @TempDir
+    File dir;
+
+    @Test
+    void writesParallelFramesInOrder() throws Exception {
+        File source = new File(dir, "source.dcm");
+        assertTrue(source.createNewFile());
+        List<String> written = new ArrayList<>();
+        Random random = new Random(1);
+        BulkDataAccess access = new BulkDataAccess(new FileHandler(dir)) {
+            @Override
+            FrameData convertFrame(Codec codec, Attributes attr, int frame, BulkData bulk, boolean fragmented) {
+                // Finish the frames out of order
+                try {
+                    Thread.sleep(random.nextInt(5));
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new FrameData(new byte[]{(byte) frame}, BulkDataAccess.OCTET_STREAM);
+            }
+
+            @Override
+            public void saveMultipart(String dest, Object value, String contentType, String separator) {
+                assertEquals("frames/" + ((byte[]) value)[0], dest);
+                written.add(dest);
+            }
+
+            @Override
+            public void saveSinglepart(String dest, Object value, String contentType) {
+            }
+        };
+        access.setTransferSyntaxUid(UID.ExplicitVRLittleEndian);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            access.setFramePool(pool);
+            List<BulkData> frames = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for(int i=1; i<=50; i++) {
+                frames.add(new BulkData(null, source.toURI() + "?offset=" + i + "&length=1", false));
+                expected.add("frames/" + i);
+            }
+            access.saveFrames(source, new Attributes(), "frames/", frames, true);
+            assertEquals(expected, written);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void failsWhenFrameCantBeStored() {
+        StorageBackend storage = new FileStorage(dir) {
+            @Override
+            public OutputStream openForWrite(String path, ContentEncoding encoding) throws IOException {
+                return new FilterOutputStream(super.openForWrite(path, encoding)) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        throw new IOException("Unable to put " + path);
+                    }
+                };
+            }
+        };
+        BulkDataAccess access = new BulkDataAccess(new FileHandler(storage, "studies/1.2"));
+        assertThrows(UncheckedIOException.class, () -> access.saveMultipart("frames/1", new byte[]{1}, "image/jpeg", "sep"));
+        assertThrows(UncheckedIOException.class, () -> access.saveSinglepart("frames/1", new byte[]{1}, "image/jpeg"));
+    }
+}
@@ -0,0 +1,68 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BulkdataStoreTest {
+    @TempDir
+    File rootDir;
+
+    @Test
+    void removesItemsOnceUnreferenced() throws Exception {
+        try(BulkdataStore store = new BulkdataStore(rootDir)) {
+            write(store, "aa/bb/shared.raw");
+            write(store, "cc/dd/only1.raw");
+            store.addReference("1.2.1", "aa/bb/shared.raw");
+            store.addReference("1.2.1", "cc/dd/only1.raw");
+            store.addReference("1.2.2", "aa/bb/shared.raw");
+            store.commitStudy("1.2.1");
+            store.commitStudy("1.2.2");
+        }
+        assertTrue(new File(rootDir, "aa/bb/shared.raw.gz").exists());
+        assertTrue(new File(rootDir, "cc/dd/only1.raw.gz").exists());
+
+        // Study 1.2.1 is re-imported without its private blob
+        try(BulkdataStore store = new BulkdataStore(rootDir)) {
+            store.addReference("1.2.1", "aa/bb/shared.raw");
+            store.commitStudy("1.2.1");
+        }
+        assertTrue(new File(rootDir, "aa/bb/shared.raw.gz").exists());
+        assertFalse(new File(rootDir, "cc/dd/only1.raw.gz").exists());
+    }
+
+    @Test
+    void rebuildsCountsAfterInterruptedRun() throws Exception {
+        BulkdataStore interrupted = new BulkdataStore(rootDir);
+        write(interrupted, "aa/bb/item.raw");
+        interrupted.addReference("1.2.1", "aa/bb/item.raw");
+        interrupted.commitStudy("1.2.1");
+        // Not closed, so the counts are only in the per study reference lists
+
+        try(BulkdataStore store = new BulkdataStore(rootDir)) {
+            store.commitStudy("1.2.1");
+        }
+        assertFalse(new File(rootDir, "aa/bb/item.raw.gz").exists());
+    }
+
+    @Test
+    void clearsStagingLeftByStoppedRun() throws Exception {
+        File orphan = new File(rootDir, BulkdataStore.STAGING_DIR + "/orphan.tmp.gz");
+        orphan.getParentFile().mkdirs();
+        assertTrue(orphan.createNewFile());
+        try(BulkdataStore store = new BulkdataStore(rootDir)) {
+            assertFalse(orphan.exists());
+            assertTrue(BulkdataStore.isIndex(store.getStagingDir()));
+        }
+    }
+
+    private static void write(BulkdataStore store, String name) throws Exception {
+        try(OutputStream os = store.getHandler().openForWrite(name)) {
+            os.write(name.getBytes());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompressionPolicyTest {
+    private final CompressionPolicy policy = CompressionPolicy.DEFAULT;
+
+    @Test
+    void compressesByContentType() {
+        assertTrue(policy.shouldCompress("application/json", -1, null));
+        assertFalse(policy.shouldCompress("image/jpeg", 100_000, null));
+        assertFalse(policy.shouldCompress("video/mp4", -1, null));
+        assertFalse(policy.shouldCompress("application/json", 100, null));
+    }
+
+    @Test
+    void probesBinarySamples() {
+        byte[] noise = new byte[3 * CompressionPolicy.SAMPLE_CHUNK_SIZE];
+        new Random(1).nextBytes(noise);
+        assertFalse(policy.shouldCompress(BulkDataAccess.OCTET_STREAM, 1_000_000, noise));
+
+        // A smooth 16 bit ramp, like the background of an image
+        byte[] smooth = new byte[noise.length];
+        for(int i=0; i<smooth.length; i+=2) {
+            smooth[i] = (byte) (i/64);
+        }
+        assertTrue(policy.shouldCompress(BulkDataAccess.OCTET_STREAM, 1_000_000, smooth));
+    }
+
+    @Test
+    void samplesThroughTheContent() {
+        assertArrayEquals(new long[]{0}, CompressionPolicy.sampleOffsets(1000));
+        long[] offsets = CompressionPolicy.sampleOffsets(1_000_000);
+        assertEquals(CompressionPolicy.SAMPLE_CHUNKS, offsets.length);
+        assertEquals(0, offsets[0]);
+        assertEquals(1_000_000 - CompressionPolicy.SAMPLE_CHUNK_SIZE, offsets[offsets.length-1]);
+    }
+}
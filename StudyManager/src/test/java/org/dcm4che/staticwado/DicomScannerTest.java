@@ -0,0 +1,108 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.DicomStreamException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DicomScannerTest {
+    @TempDir
+    File dir;
+
+    @Test
+    void walksNestedFiles() throws Exception {
+        File a = createFile("a/1");
+        File b = createFile("a/b/2");
+        File c = createFile("c");
+        List<File> walked = new ArrayList<>();
+        new FileWalker(new File(dir, "a").getPath(), c.getPath()).forEachRemaining(walked::add);
+        walked.sort(null);
+        assertEquals(Arrays.asList(a, b, c), walked);
+    }
+
+    @Test
+    void skipsUnreadableFilesInWalkOrder() throws Exception {
+        for(int i=0; i<100; i++) {
+            createFile(String.format("%03d", i));
+        }
+        List<String> expected = new ArrayList<>();
+        new FileWalker(dir.getPath()).forEachRemaining(file -> {
+            int i = Integer.parseInt(file.getName());
+            if( i%3!=0 && i%5!=0 ) expected.add(file.getName());
+        });
+        List<String> handled = new ArrayList<>();
+        new DicomScanner(4).scan(new FileWalker(dir.getPath()), file -> {
+            int i = Integer.parseInt(file.getName());
+            if( i%3==0 ) throw new DicomStreamException("Not DICOM");
+            if( i%5==0 ) throw new IOException("Truncated");
+            return new Attributes();
+        }, (file, attr) -> handled.add(file.getName()));
+        assertEquals(expected, handled);
+    }
+
+    @Test
+    void failsScanOnUnexpectedErrors() throws Exception {
+        createFile("1");
+        assertThrows(IllegalStateException.class, () -> new DicomScanner(2).scan(new FileWalker(dir.getPath()), file -> {
+            throw new IllegalStateException("Bad reader");
+        }, (file, attr) -> fail("Nothing is read")));
+    }
+
+    @Test
+    void failsScanAfterHandlingFilesWalkedBeforeAnError() throws Exception {
+        File a = createFile("a");
+        Iterator<File> files = new Iterator<File>() {
+            boolean walked;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public File next() {
+                if( walked ) throw new IllegalStateException("Unable to list");
+                walked = true;
+                return a;
+            }
+        };
+        List<File> handled = new ArrayList<>();
+        IllegalStateException e = assertThrows(IllegalStateException.class,
+            () -> new DicomScanner(2).scan(files, file -> new Attributes(), (file, attr) -> handled.add(file)));
+        assertEquals("Unable to list", e.getMessage());
+        assertEquals(Arrays.asList(a), handled);
+    }
+
+    @Test
+    void failsScanWhenInterrupted() throws Exception {
+        createFile("1");
+        createFile("2");
+        try {
+            UncheckedIOException e = assertThrows(UncheckedIOException.class, () -> new DicomScanner(2).scan(new FileWalker(dir.getPath()),
+                file -> new Attributes(), (file, attr) -> Thread.currentThread().interrupt()));
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+            assertTrue(Thread.currentThread().isInterrupted(), "The interrupt is kept");
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(dir, name);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), name.getBytes());
+        return file;
+    }
+}
@@ -0,0 +1,56 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MappedRegionTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void copiesFramesFromMapping() throws Exception {
+        File source = new File(tempDir, "source.raw");
+        byte[] data = new byte[300_000];
+        for(int i=0; i<data.length; i++) data[i] = (byte) (i * 31);
+        Files.write(source.toPath(), data);
+
+        MappedRegion region = MappedRegion.map(source, 1000, 200_000);
+        assertTrue(region.contains(source, 1000, 100_000));
+        assertTrue(region.contains(source, 101_000, 100_000));
+        assertFalse(region.contains(source, 101_000, 100_001));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        assertEquals(100_000, region.copyTo(101_000, 100_000, bos));
+        assertArrayEquals(Arrays.copyOfRange(data, 101_000, 201_000), bos.toByteArray());
+
+        File frame = new File(tempDir, "frame");
+        try(FileOutputStream fos = new FileOutputStream(frame)) {
+            region.copyTo(1000, 100_000, fos);
+        }
+        assertArrayEquals(Arrays.copyOfRange(data, 1000, 101_000), Files.readAllBytes(frame.toPath()));
+    }
+
+    @Test
+    void samplesFromMapping() throws Exception {
+        File source = new File(tempDir, "source.raw");
+        byte[] data = new byte[100_000];
+        for(int i=0; i<data.length; i++) data[i] = (byte) (i * 31);
+        Files.write(source.toPath(), data);
+
+        MappedRegion region = MappedRegion.map(source, 1000, 90_000);
+        byte[] sample = region.sample(11_000, 50_000);
+        int chunk = CompressionPolicy.SAMPLE_CHUNK_SIZE;
+        assertEquals(CompressionPolicy.SAMPLE_CHUNKS * chunk, sample.length);
+        assertArrayEquals(Arrays.copyOfRange(data, 11_000, 11_000 + chunk), Arrays.copyOfRange(sample, 0, chunk));
+        assertArrayEquals(Arrays.copyOfRange(data, 61_000 - chunk, 61_000), Arrays.copyOfRange(sample, sample.length - chunk, sample.length));
+        assertArrayEquals(Arrays.copyOfRange(data, 2000, 2100), region.sample(2000, 100));
+    }
+}
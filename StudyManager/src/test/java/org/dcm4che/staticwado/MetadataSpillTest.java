@@ -0,0 +1,44 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetadataSpillTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void readsBackInstancesInOrder() throws Exception {
+        File file = new File(tempDir, "1.2/1.2.3.metadata");
+        try(MetadataSpill spill = new MetadataSpill(file)) {
+            for(int i=1; i<=3; i++) {
+                Attributes attr = new Attributes();
+                attr.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3."+i);
+                attr.setInt(Tag.InstanceNumber, VR.IS, i);
+                spill.append(attr);
+            }
+            assertEquals(Arrays.asList("1.2.3.1", "1.2.3.2", "1.2.3.3"), sopUids(spill));
+            // Each pass re-reads the file
+            assertEquals(3, sopUids(spill).size());
+        }
+        assertFalse(file.exists());
+    }
+
+    private static List<String> sopUids(MetadataSpill spill) {
+        List<String> ret = new ArrayList<>();
+        for(Attributes attr : spill) {
+            ret.add(attr.getString(Tag.SOPInstanceUID));
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,90 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ParallelGZIPOutputStreamTest {
+
+    @Test
+    void compressesBlocksInParallel() throws Exception {
+        byte[] data = createData(1_000_000);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try(ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(bos, pool, 64*1024, Deflater.DEFAULT_COMPRESSION, 100_000)) {
+                // Uneven writes, so blocks are split across writes
+                for(int i=0; i<data.length; i+=7919) {
+                    gzip.write(data, i, Math.min(7919, data.length-i));
+                    gzip.flush();
+                }
+            }
+            assertArrayEquals(data, gunzip(bos.toByteArray()));
+            // Priming each block with the end of the previous one keeps the size close to serial gzip
+            ByteArrayOutputStream serial = new ByteArrayOutputStream();
+            try(GZIPOutputStream gzip = new GZIPOutputStream(serial)) {
+                gzip.write(data);
+            }
+            assertTrue(bos.size() < serial.size() * 1.05);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void writesSmallAndEmptyOutputsInline() throws Exception {
+        for(byte[] data : new byte[][]{new byte[0], "[{\"00080020\":{}}]\n".getBytes()}) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try(ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(bos, null, 64*1024, Deflater.BEST_SPEED, 0)) {
+                gzip.write(data);
+            }
+            assertArrayEquals(data, gunzip(bos.toByteArray()));
+        }
+    }
+
+    @Test
+    void switchesToBlocksPartWayThroughAWrite() throws Exception {
+        byte[] data = createData(500_000);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for(long threshold : new long[]{0, 1, 150_000, 499_999, 500_000}) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try(ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(bos, pool, 64*1024, Deflater.DEFAULT_COMPRESSION, threshold)) {
+                    gzip.write(data, 0, 100_000);
+                    gzip.write(data, 100_000, data.length-100_000);
+                }
+                assertArrayEquals(data, gunzip(bos.toByteArray()), "Threshold " + threshold);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /** Creates compressible data, with repeats further back than a block */
+    private static byte[] createData(int length) {
+        Random random = new Random(1234);
+        byte[] words = new byte[40_000];
+        random.nextBytes(words);
+        byte[] ret = new byte[length];
+        for(int i=0; i<length; i+=16) {
+            System.arraycopy(words, random.nextInt(words.length/16)*16, ret, i, Math.min(16, length-i));
+        }
+        return ret;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        try(GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            return gzip.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QueryIndexTest {
+    @TempDir
+    File rootDir;
+
+    @Test
+    void writesSortedPages() throws Exception {
+        List<Attributes> studies = new ArrayList<>();
+        for(int i=0; i<5; i++) {
+            studies.add(study("1.2." + i, "PID" + (4-i), "2020010" + i, "CT", "MR"));
+        }
+        FileHandler handler = new FileHandler(rootDir);
+        QueryIndex index = new QueryIndex(handler);
+        index.setPageSize(2);
+        index.write(studies);
+
+        FileHandler patients = handler.forSubDir(QueryIndex.Key.PatientID.name());
+        assertTrue(patients.exists(QueryIndex.MANIFEST));
+        assertTrue(patients.exists("2"));
+        assertFalse(patients.exists("3"));
+        List<Attributes> first = read(patients, "0");
+        assertEquals("PID0", first.get(0).getString(Tag.PatientID));
+        assertEquals("PID1", first.get(1).getString(Tag.PatientID));
+
+        // Each study is listed under both of its modalities
+        FileHandler modalities = handler.forSubDir(QueryIndex.Key.ModalitiesInStudy.name());
+        assertTrue(modalities.exists("4"));
+        assertFalse(modalities.exists("5"));
+
+        // Fewer studies leaves fewer pages
+        index.write(studies.subList(0, 2));
+        assertTrue(patients.exists("0"));
+        assertFalse(patients.exists("1"));
+    }
+
+    @Test
+    void updatesOnlyTheChangedPages() throws Exception {
+        List<Attributes> studies = new ArrayList<>();
+        for(int i=0; i<8; i++) {
+            studies.add(study("1.2." + i, "PID" + i, "2020010" + i, "CT"));
+        }
+        FileHandler handler = new FileHandler(rootDir);
+        QueryIndex index = new QueryIndex(handler);
+        index.setPageSize(2);
+        assertFalse(index.update(new ArrayList<>(), studies), "Nothing to update before the first write");
+        index.write(studies);
+
+        // Moves study 1.2.0 from the first page to the last, and adds a study to the second page
+        Attributes moved = study("1.2.0", "PID9", "20200100", "CT");
+        Attributes added = study("1.2.8", "PID2", "20200108", "CT");
+        assertTrue(index.update(Arrays.asList(studies.get(0)), Arrays.asList(moved, added)));
+
+        FileHandler patients = handler.forSubDir(QueryIndex.Key.PatientID.name());
+        List<String> patientIds = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for(QueryIndex.Page page : QueryIndex.readManifest(patients)) {
+            names.add(page.name);
+            for(Attributes study : read(patients, page.name)) {
+                patientIds.add(study.getString(Tag.PatientID));
+            }
+        }
+        assertEquals(Arrays.asList("PID1", "PID2", "PID2", "PID3", "PID4", "PID5", "PID6", "PID7", "PID9"), patientIds);
+        assertEquals(Arrays.asList("0", "1", "2", "3"), names);
+
+        // Every study stays listed once under CT
+        FileHandler modalities = handler.forSubDir(QueryIndex.Key.ModalitiesInStudy.name());
+        int count = 0;
+        for(QueryIndex.Page page : QueryIndex.readManifest(modalities)) {
+            count += read(modalities, page.name).size();
+        }
+        assertEquals(9, count);
+    }
+
+    @Test
+    void ordersSameKeyMostRecentFirst() {
+        Attributes older = study("1.2.1", "PID", "20190101", "CT");
+        Attributes newer = study("1.2.2", "PID", "20200101", "CT");
+        List<QueryIndex.Entry> entries = new ArrayList<>(Arrays.asList(
+                new QueryIndex.Entry("PID", older), new QueryIndex.Entry("PID", newer)));
+        entries.sort(null);
+        assertSame(newer, entries.get(0).study);
+    }
+
+    private static List<Attributes> read(FileHandler handler, String page) throws Exception {
+        try(InputStream is = handler.openForRead(page)) {
+            return JsonWadoAccess.read(is);
+        }
+    }
+
+    private static Attributes study(String studyUid, String patientId, String studyDate, String... modalities) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+        attr.setString(Tag.PatientID, VR.LO, patientId);
+        attr.setString(Tag.StudyDate, VR.DA, studyDate);
+        attr.setString(Tag.ModalitiesInStudy, VR.CS, modalities);
+        return attr;
+    }
+}
@@ -0,0 +1,55 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SerialExecutorTest {
+    @Test
+    void runsInSubmissionOrderOnSharedPool() {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            SerialExecutor lane = new SerialExecutor(pool);
+            List<Integer> order = new ArrayList<>();
+            for(int i=0; i<1000; i++) {
+                int value = i;
+                lane.submit(() -> order.add(value));
+            }
+            lane.drain().join();
+            assertEquals(1000, order.size());
+            for(int i=0; i<1000; i++) {
+                assertEquals(i, (int) order.get(i));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void continuesAfterFailedTask() {
+        SerialExecutor lane = new SerialExecutor(SerialExecutor.DIRECT);
+        List<String> ran = new ArrayList<>();
+        lane.submit(() -> { throw new IllegalStateException("failed"); });
+        lane.submit(() -> ran.add("after"));
+        lane.drain().join();
+        assertEquals(List.of("after"), ran);
+    }
+
+    @Test
+    void startsAfterPreviousLane() {
+        CompletableFuture<Void> previous = new CompletableFuture<>();
+        SerialExecutor lane = new SerialExecutor(SerialExecutor.DIRECT, previous);
+        List<String> ran = new ArrayList<>();
+        lane.submit(() -> ran.add("next"));
+        assertEquals(List.of(), ran);
+        previous.completeExceptionally(new IllegalStateException("failed"));
+        lane.drain().join();
+        assertEquals(List.of("next"), ran);
+    }
+}
@@ -0,0 +1,55 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StudiesIndexTest {
+    @TempDir
+    File rootDir;
+
+    @Test
+    void shardsByUidHash() {
+        String shard = StudiesIndex.shardOf("1.2.3.4");
+        assertEquals(2, shard.length());
+        assertEquals(shard, StudiesIndex.shardOf("1.2.3.4"));
+        assertTrue(Integer.parseInt(shard, 16) < StudiesIndex.SHARD_COUNT);
+        assertEquals("94", StudiesIndex.shardOf("1.2.1"));
+    }
+
+    @Test
+    void rewritesOnlyChangedShards() throws Exception {
+        StudiesIndex index = new StudiesIndex(new FileHandler(rootDir));
+        index.update(Arrays.asList(study("1.2.1"), study("1.2.2")), Collections.emptyList());
+        assertNotNull(index.getStudy("1.2.1"));
+        assertNotNull(index.getStudy("1.2.2"));
+
+        File otherShard = new File(rootDir, StudiesIndex.shardOf("1.2.2") + ".gz");
+        long written = otherShard.lastModified();
+        otherShard.setLastModified(written - 10000);
+        // 1.2.1, 1.2.2 and 1.2.3 are in shards 94, 6d and 6f
+        index.update(Collections.singletonList(study("1.2.3")), Collections.singletonList("1.2.1"));
+        assertNull(index.getStudy("1.2.1"));
+        assertNotNull(index.getStudy("1.2.3"));
+        assertEquals(written - 10000, otherShard.lastModified());
+        assertFalse(new File(rootDir, "94.gz").exists());
+
+        Map<String, Integer> counts = index.readManifest();
+        assertEquals(2, counts.values().stream().mapToInt(Integer::intValue).sum());
+    }
+
+    private static Attributes study(String studyUid) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.StudyInstanceUID, VR.UI, studyUid);
+        return attr;
+    }
+}
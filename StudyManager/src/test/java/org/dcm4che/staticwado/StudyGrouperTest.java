@@ -0,0 +1,50 @@
+package org.dcm4che.staticwado;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class StudyGrouperTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void groupsInterleavedStudiesInMemory() {
+        try(StudyGrouper grouper = new StudyGrouper(tempDir, 100)) {
+            addInterleaved(grouper);
+            assertEquals(List.of("a1", "a2", "a3", "b1", "b2", "c1", "c2", "c3"), names(grouper));
+        }
+    }
+
+    @Test
+    void groupsInterleavedStudiesWithSpilledRuns() {
+        try(StudyGrouper grouper = new StudyGrouper(tempDir, 3)) {
+            addInterleaved(grouper);
+            assertEquals(2, tempDir.listFiles().length);
+            assertEquals(List.of("a1", "a2", "a3", "b1", "b2", "c1", "c2", "c3"), names(grouper));
+        }
+        assertEquals(0, tempDir.listFiles().length);
+    }
+
+    private static void addInterleaved(StudyGrouper grouper) {
+        grouper.add("1.2.3", new File("c1"));
+        grouper.add("1.2.1", new File("a1"));
+        grouper.add("1.2.2", new File("b1"));
+        grouper.add("1.2.1", new File("a2"));
+        grouper.add("1.2.3", new File("c2"));
+        grouper.add("1.2.2", new File("b2"));
+        grouper.add("1.2.3", new File("c3"));
+        grouper.add("1.2.1", new File("a3"));
+    }
+
+    private static List<String> names(StudyGrouper grouper) {
+        List<String> ret = new ArrayList<>();
+        grouper.forEach(file -> ret.add(file.getName()));
+        return ret;
+    }
+}
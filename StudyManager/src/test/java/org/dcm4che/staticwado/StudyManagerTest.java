@@ -1,8 +1,18 @@
 package org.dcm4che.staticwado;
 
+import org.dcm4che3.data.Attributes;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class StudyManagerTest {
+    @TempDir
+    File dir;
+
     @Test
     void convertStaticDicomDirTest() {
         StudyManager manager = new StudyManager();
@@ -16,4 +26,29 @@ public class StudyManagerTest {
         manager.setExportDir("/dicomweb/studies");
         manager.importStudies("/dicom/multiframes/US-PAL-8-10x-echo");
     }
+
+    @Test
+    void removesRunTempDirEvenOnFailure() throws Exception {
+        File input = new File(dir, "input");
+        input.mkdirs();
+        Files.write(new File(input, "instance.dcm").toPath(), new byte[]{1});
+        File temp = new File(dir, "temp");
+        StudyManager manager = new StudyManager() {
+            @Override
+            Attributes readFile(File file) {
+                // Leave something in the run directory, as bulkdata read from the file would be
+                assertTrue(new File(bulkTempDir, "bulkdata.raw").mkdirs());
+                return new Attributes();
+            }
+
+            @Override
+            void importDicom(File file, Attributes attr) {
+                throw new IllegalStateException("Unable to import " + file);
+            }
+        };
+        manager.setExportDir(new File(dir, "export").getPath());
+        manager.setTempDir(temp.getPath());
+        assertThrows(IllegalStateException.class, () -> manager.importStudies(input.getPath()));
+        assertEquals(0, temp.list().length, "The run directory is removed");
+    }
 }
@@ -0,0 +1,146 @@
+package org.dcm4che.staticwado;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StudyMetadataEngineTest {
+    @TempDir
+    File dir;
+
+    @Test
+    void addsEachSeriesInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            StudyMetadataEngine engine = createEngine();
+            engine.setExecutor(pool);
+            // Spill everything, as the spill file holds the metadata in the order it was added
+            engine.setSpill(new File(dir, "spill"), 0);
+            engine.openNewStudy(instance("1.1", "1.1.1"), new FileHandler(new File(dir, "studies")));
+            File empty = new File(dir, "empty.dcm");
+            assertTrue(empty.createNewFile());
+            List<String> expected1 = new ArrayList<>();
+            List<String> expected2 = new ArrayList<>();
+            for(int i=0; i<100; i++) {
+                engine.addObject(empty, instance("1.1.1", "1.1.1." + i));
+                engine.addObject(empty, instance("1.1.2", "1.1.2." + i));
+                expected1.add("1.1.1." + i);
+                expected2.add("1.1.2." + i);
+            }
+            engine.awaitSeries();
+            assertEquals(expected1, sopUids(engine.studyData.getMetadata("1.1.1")));
+            assertEquals(expected2, sopUids(engine.studyData.getMetadata("1.1.2")));
+            engine.studyData.close();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void failsStudyWithObjectsNotAdded() {
+        StudyMetadataEngine engine = createEngine();
+        engine.openNewStudy(instance("1.1", "1.1.1"), new FileHandler(new File(dir, "studies")));
+        engine.addObject(new File(dir, "missing.dcm"), instance("1.1.1", "1.1.1.1"));
+        UncheckedIOException failed = assertThrows(UncheckedIOException.class, engine::finalizeStudy);
+        assertEquals(1, failed.getCause().getSuppressed().length);
+        assertFalse(new File(dir, "studies/1.2/series.gz").exists());
+    }
+
+    @Test
+    void failsStudyWhenFramesCantBeStored() throws Exception {
+        File raw = new File(dir, "pixels.raw");
+        Files.write(raw.toPath(), new byte[]{1, 2, 3, 4});
+        // Like an object store whose put fails when the frame is closed
+        StorageBackend storage = new FileStorage(new File(dir, "out")) {
+            @Override
+            public OutputStream openForWrite(String path, ContentEncoding encoding) throws IOException {
+                OutputStream os = super.openForWrite(path, encoding);
+                if( !path.contains("/frames/") ) return os;
+                return new FilterOutputStream(os) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        throw new IOException("Unable to put " + path);
+                    }
+                };
+            }
+        };
+        StudyMetadataEngine engine = createEngine();
+        Attributes attr = instance("1.1.1", "1.1.1.1");
+        attr.setString(Tag.AvailableTransferSyntaxUID, VR.UI, UID.ExplicitVRLittleEndian);
+        attr.setInt(Tag.Rows, VR.US, 2);
+        attr.setInt(Tag.Columns, VR.US, 2);
+        attr.setInt(Tag.BitsAllocated, VR.US, 8);
+        attr.setValue(Tag.PixelData, VR.OB, new BulkData(null, raw.toURI() + "?offset=0&length=4", false));
+        engine.openNewStudy(attr, new FileHandler(storage, "studies"));
+        engine.addObject(raw, attr);
+        assertThrows(UncheckedIOException.class, engine::finalizeStudy);
+        assertFalse(storage.exists("studies/1.2/series", ContentEncoding.GZIP), "No metadata for missing frames");
+    }
+
+    @Test
+    void aggregatesFileTaskFailures() {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            StudyMetadataEngine engine = createEngine();
+            engine.setExecutor(pool);
+            StudyMetadataEngine.FileTasks tasks = engine.new FileTasks();
+            AtomicInteger completed = new AtomicInteger();
+            for(int i=0; i<200; i++) {
+                int task = i;
+                tasks.submit(() -> {
+                    // Tasks submitted from tasks are waited for too
+                    if( task%50==0 ) tasks.submit(() -> {
+                        throw new UncheckedIOException(new IOException("Nested " + task));
+                    });
+                    completed.incrementAndGet();
+                });
+            }
+            IOException failed = assertThrows(IOException.class, () -> tasks.await("1.2"));
+            assertEquals(4, failed.getSuppressed().length);
+            assertEquals(200, completed.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static StudyMetadataEngine createEngine() {
+        StudyMetadataEngine engine = new StudyMetadataEngine();
+        engine.setTransferSyntaxUid(UID.ExplicitVRLittleEndian);
+        return engine;
+    }
+
+    private static Attributes instance(String seriesUid, String sopUid) {
+        Attributes attr = new Attributes();
+        attr.setString(Tag.StudyInstanceUID, VR.UI, "1.2");
+        attr.setString(Tag.SeriesInstanceUID, VR.UI, seriesUid);
+        attr.setString(Tag.SOPInstanceUID, VR.UI, sopUid);
+        return attr;
+    }
+
+    private static List<String> sopUids(Iterable<Attributes> metadata) {
+        List<String> ret = new ArrayList<>();
+        for(Attributes attr : metadata) {
+            ret.add(attr.getString(Tag.SOPInstanceUID));
+        }
+        return ret;
+    }
+}